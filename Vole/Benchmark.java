@@ -0,0 +1,700 @@
+package Vole;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//Rough timings for the interpreter. Run with
+//	java Vole.Benchmark [name ...]
+//and every benchmark is run if no names are given.
+class Benchmark{
+
+	Benchmark(){}
+
+	static Environment newGlobalEnv(){
+		Environment env = new Environment();
+		env.concat(CoreLispLib.getEnv());
+		return env;
+	}
+
+	//Call cost should not depend on how many globals are defined.
+	static void envCalls() throws Exception{
+		final int calls = 200000;
+		int[] globalCounts = {0, 1000, 10000, 100000};
+		for(int globals : globalCounts){
+			final Environment env = newGlobalEnv();
+			for(int i = 0; i < globals; i++)
+				env.add(SymbolVal.intern("global-".concat(Integer.toString(i))),NumberVal.valueOf(i));
+			Evaluator.eval_string("(define count (lambda n (if (= n 0) 0 (count (- n 1)))))",env);
+
+			//warm up
+			Evaluator.eval_string("(count 20000)",env);
+
+			long start = System.nanoTime();
+			Evaluator.eval_string("(count ".concat(Integer.toString(calls)).concat(")"),env);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("env-calls globals=%d\t%.1f ns/call",globals,(double) elapsed / calls));
+		}
+	}
+
+	//Best of several runs of a recursive function in each mode.
+	static void modes() throws Exception{
+		for(Vole.Mode mode : Vole.Mode.values()){
+			Context.current().setMode(mode);
+			Environment env = newGlobalEnv();
+			Evaluator.eval_string("(define fib (lambda n (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))",env);
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < 30; i++){
+				long start = System.nanoTime();
+				Evaluator.eval_string("(fib 24)",env);
+				best = Math.min(best,System.nanoTime() - start);
+			}
+			System.out.println(String.format("modes %s\t%.1f ms (fib 24)",mode.toString().toLowerCase(),best / 1e6));
+		}
+		Context.current().setMode(Vole.Mode.INTERPRETED);
+	}
+
+	//A loop that does nothing but small integer arithmetic.
+	static void arith() throws Exception{
+		Environment env = newGlobalEnv();
+		Evaluator.eval_string("(define sum (lambda (n acc) (if (= n 0) acc (sum (- n 1) (+ acc (* n 3))))))",env);
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < 10; i++){
+			long start = System.nanoTime();
+			Evaluator.eval_string("(sum 200000 0)",env);
+			best = Math.min(best,System.nanoTime() - start);
+		}
+		System.out.println(String.format("arith\t%.1f ns/iteration",(double) best / 200000));
+	}
+
+	//The same loop summing doubles, the way an average is computed.
+	static void flonum() throws Exception{
+		Environment env = newGlobalEnv();
+		Evaluator.eval_string("(define sum (lambda (n x acc) (if (= n 0) acc (sum (- n 1) (+ x 0.5) (+ acc (* x x))))))",env);
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < 10; i++){
+			long start = System.nanoTime();
+			Evaluator.eval_string("(sum 200000 0.0 0.0)",env);
+			best = Math.min(best,System.nanoTime() - start);
+		}
+		System.out.println(String.format("flonum\t%.1f ns/iteration",(double) best / 200000));
+	}
+
+	//Bytes allocated per eval of a few small forms, measured with the
+	//thread allocation counter like a gc profiler would.
+	static void alloc() throws Exception{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		Environment env = newGlobalEnv();
+		Evaluator.eval_string("(define classify (lambda x (if (pair? x) (nil? (cdr x)) (not (number? x)))))",env);
+		Evaluator.eval_string("(define count (lambda n (if (< n 1) (list) (count (- n 1)))))",env);
+		String[] forms = {
+			"(classify (list 1))",
+			"(not (eq? 1 2))",
+			"(count 100)",
+			"(list)"
+		};
+		for(String form : forms){
+			Expression exp = Parser.parseSexp(new Lexer(form));
+			final int evals = 20000;
+			for(int i = 0; i < evals; i++)
+				Evaluator.eval(exp,env);
+			long before = threads.getThreadAllocatedBytes(thread);
+			for(int i = 0; i < evals; i++)
+				Evaluator.eval(exp,env);
+			long bytes = threads.getThreadAllocatedBytes(thread) - before;
+			System.out.println(String.format("alloc %s\t%.1f bytes/eval",form,(double) bytes / evals));
+		}
+	}
+
+	//Parser throughput on a generated file of nested lists, numbers,
+	//strings and symbols.
+	static void parse() throws Exception{
+		File file = File.createTempFile("vole-parse",".scm");
+		file.deleteOnExit();
+		Writer out = new BufferedWriter(new FileWriter(file));
+		for(int i = 0; i < 200000; i++)
+			out.write("(define item-".concat(Integer.toString(i)).concat(" (list ").concat(Integer.toString(i * 7919)).concat(" \"name\" (cons a-symbol (quote (1 2 3))) #t 12345678901234567890)) ; comment\n"));
+		out.close();
+		double megabytes = file.length() / 1e6;
+
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++){
+			Reader input = new BufferedReader(new FileReader(file));
+			long start = System.nanoTime();
+			while(Parser.parseSexp(input) != null);
+			best = Math.min(best,System.nanoTime() - start);
+			input.close();
+		}
+		System.out.println(String.format("parse reader\t%.1f MB/s (%.1f MB)",megabytes / (best / 1e9),megabytes));
+
+		best = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++){
+			long start = System.nanoTime();
+			Lexer lexer = Lexer.open(file.getPath());
+			while(Parser.parseSexp(lexer) != null);
+			best = Math.min(best,System.nanoTime() - start);
+			lexer.close();
+		}
+		System.out.println(String.format("parse mapped\t%.1f MB/s (%.1f MB)",megabytes / (best / 1e9),megabytes));
+	}
+
+	//Startup loading a few dozen library files, with load one after
+	//another and with load-all.
+	static void load() throws Exception{
+		String[] files = new String[40];
+		for(int f = 0; f < files.length; f++){
+			File file = File.createTempFile("vole-lib",".scm");
+			file.deleteOnExit();
+			Writer out = new BufferedWriter(new FileWriter(file));
+			for(int i = 0; i < 5000; i++){
+				String name = "lib-".concat(Integer.toString(f)).concat("-").concat(Integer.toString(i));
+				out.write("(define ".concat(name).concat(" (lambda (x y) (if (< x y) (cons x (list y \"").concat(name).concat("\" 1.5)) (list)))) ; ").concat(Integer.toString(i)).concat("\n"));
+			}
+			out.close();
+			files[f] = file.getPath();
+		}
+
+		long sequential = Long.MAX_VALUE;
+		long parallel = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++){
+			Environment env = newGlobalEnv();
+			long start = System.nanoTime();
+			for(String file : files)
+				Evaluator.load(file,env);
+			sequential = Math.min(sequential,System.nanoTime() - start);
+
+			env = newGlobalEnv();
+			start = System.nanoTime();
+			Loader.loadAll(files,env);
+			parallel = Math.min(parallel,System.nanoTime() - start);
+		}
+		System.out.println(String.format("load sequential\t%.1f ms (%d files)",sequential / 1e6,files.length));
+		System.out.println(String.format("load load-all\t%.1f ms (%d files)",parallel / 1e6,files.length));
+	}
+
+	//Loading the forms of a file from its image instead of parsing it.
+	static void fasl() throws Exception{
+		File file = File.createTempFile("vole-fasl",".scm");
+		file.deleteOnExit();
+		Writer out = new BufferedWriter(new FileWriter(file));
+		for(int i = 0; i < 200000; i++)
+			out.write("(define item-".concat(Integer.toString(i)).concat(" (list ").concat(Integer.toString(i * 7919)).concat(" \"name\" (cons a-symbol (quote (1 2 3))) #t 2/3 1.5)) ; comment\n"));
+		out.close();
+		File image = new File(Fasl.imageFor(file.getPath()));
+		image.deleteOnExit();
+		Fasl.compileFile(file.getPath(),image.getPath());
+
+		long parse = Long.MAX_VALUE;
+		long read = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++){
+			long start = System.nanoTime();
+			Lexer lexer = Lexer.open(file.getPath());
+			Expression exp;
+			while((exp = Parser.parseSexp(lexer)) != null)
+				new Expander(null).expandForm(exp);
+			lexer.close();
+			parse = Math.min(parse,System.nanoTime() - start);
+
+			start = System.nanoTime();
+			Fasl in = Fasl.reader(Fasl.readFile(image.getPath()));
+			while(in.next() != null);
+			read = Math.min(read,System.nanoTime() - start);
+		}
+		System.out.println(String.format("fasl parse\t%.1f ms (%.1f MB source, expanded)",parse / 1e6,file.length() / 1e6));
+		System.out.println(String.format("fasl image\t%.1f ms (%.1f MB image)",read / 1e6,image.length() / 1e6));
+		faslMacros();
+	}
+
+	//An image is used while the macros are the ones it was expanded with,
+	//and otherwise the source is, or loading the image alone fails.
+	static void faslMacros() throws Exception{
+		File file = File.createTempFile("vole-fasl",".scm");
+		file.deleteOnExit();
+		Writer out = new FileWriter(file);
+		out.write("(define one (twice (quote 1)))\n(define-syntax twice (syntax-rules () ((_ x) (+ x (+ x (+ x x))))))\n(define four (twice 4))\n");
+		out.close();
+		File image = new File(Fasl.imageFor(file.getPath()));
+		image.deleteOnExit();
+		String two = "(define-syntax twice (syntax-rules () ((_ x) (+ x x))))";
+		String three = "(define-syntax twice (syntax-rules () ((_ x) (+ x (+ x x)))))";
+
+		Context previous = Context.enter(contextWith(two));
+		try{
+			Fasl.compileFile(file.getPath(),image.getPath());
+		}finally{
+			Context.exit(previous);
+		}
+		checkLoad(two,file.getPath(),"2 16");
+		checkLoad(two,image.getPath(),"2 16");
+		checkLoad(three,file.getPath(),"3 16");
+		try{
+			checkLoad(three,image.getPath(),"");
+		}catch(Exception e){
+			return;
+		}
+		throw new Exception("An image expanded with other macros was loaded.");
+	}
+
+	static Context contextWith(String macro) throws Exception{
+		Context context = new Context();
+		Context previous = Context.enter(context);
+		try{
+			new Expander(null).expandForm(Parser.parseSexp(new Lexer(macro)));
+		}finally{
+			Context.exit(previous);
+		}
+		return context;
+	}
+
+	static void checkLoad(String macro, String filename, String expected) throws Exception{
+		Environment env = newGlobalEnv();
+		Context previous = Context.enter(contextWith(macro));
+		try{
+			Evaluator.load(filename,env);
+		}finally{
+			Context.exit(previous);
+		}
+		String result = env.lookUp(SymbolVal.intern("one")).toString().concat(" ").concat(env.lookUp(SymbolVal.intern("four")).toString());
+		if(!result.equals(expected))
+			throw new Exception("Loading ".concat(filename).concat(" gave ").concat(result).concat(" instead of ").concat(expected));
+	}
+
+	//Getting a top level with a library of definitions in it, by loading
+	//the library and by restoring a snapshot taken after loading it.
+	static void snapshot() throws Exception{
+		File file = File.createTempFile("vole-snapshot",".scm");
+		file.deleteOnExit();
+		Writer out = new BufferedWriter(new FileWriter(file));
+		for(int i = 0; i < 20000; i++){
+			String name = "lib-".concat(Integer.toString(i));
+			out.write("(define ".concat(name).concat(" (lambda (x y) (if (< x y) (cons x (list y \"").concat(name).concat("\" 1.5)) (list))))\n"));
+		}
+		out.close();
+		File snapshot = File.createTempFile("vole-snapshot",".image");
+		snapshot.deleteOnExit();
+
+		long load = Long.MAX_VALUE;
+		long restore = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++){
+			long start = System.nanoTime();
+			Environment env = newGlobalEnv();
+			Evaluator.load(file.getPath(),env);
+			load = Math.min(load,System.nanoTime() - start);
+			Fasl.writeSnapshot(snapshot.getPath(),env);
+
+			start = System.nanoTime();
+			Fasl.readSnapshot(Fasl.readFile(snapshot.getPath()));
+			restore = Math.min(restore,System.nanoTime() - start);
+		}
+		System.out.println(String.format("snapshot load\t%.1f ms",load / 1e6));
+		System.out.println(String.format("snapshot restore\t%.1f ms (%.1f MB)",restore / 1e6,snapshot.length() / 1e6));
+	}
+
+	//Expanding a form with macro-expand from macros.scm and with the
+	//Java expander, which is given a new copy of the form each time and
+	//called without its memo and cache.
+	static void expand() throws Exception{
+		Environment env = newGlobalEnv();
+		Evaluator.load("macros.scm",env);
+		Expression macroExpand = env.lookUp(SymbolVal.intern("macro-expand"));
+		String text = "(lambda (a b) (let (x (+ a 1)) (let (y (quote (1 2 3))) (if (< x b) (cons x (f y (g a (h b (list 1 2 3 4 5 6))))) (let (z (* x x)) (lambda w (+ w z)))))))";
+
+		final int expansions = 200;
+		long scheme = Long.MAX_VALUE;
+		long java = Long.MAX_VALUE;
+		for(int i = 0; i < 10; i++){
+			long start = System.nanoTime();
+			for(int j = 0; j < expansions; j++)
+				Evaluator.apply(macroExpand,new Pair(Parser.parseSexp(new Lexer(text)),Pair.NIL),env);
+			scheme = Math.min(scheme,System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for(int j = 0; j < expansions; j++)
+				new Expander(null).expandForm(Parser.parseSexp(new Lexer(text)));
+			java = Math.min(java,System.nanoTime() - start);
+		}
+		System.out.println(String.format("expand macro-expand\t%.1f us/form",scheme / 1e3 / expansions));
+		System.out.println(String.format("expand java\t%.1f us/form",java / 1e3 / expansions));
+	}
+
+	//Loading a file full of macro uses into a new top level, with the
+	//ExpansionCache emptied before each load and with it kept from the
+	//loads before.
+	static void expansionCache() throws Exception{
+		File file = File.createTempFile("vole-expansion",".scm");
+		file.deleteOnExit();
+		Writer out = new BufferedWriter(new FileWriter(file));
+		out.write("(define-syntax my-or (syntax-rules () ((_) #f) ((_ e) e) ((_ e r ...) (let (t e) (if t t (my-or r ...))))))\n");
+		out.write("(define-syntax swap-all (syntax-rules () ((_ (a b) ...) (list (list b a) ...))))\n");
+		for(int i = 0; i < 5000; i++){
+			String n = Integer.toString(i);
+			out.write("(my-or #f (swap-all (1 ".concat(n).concat(") ((quote x) (quote y)) (\"s\" (quote q))) (my-or #f #f ").concat(n).concat("))\n"));
+		}
+		out.close();
+
+		long cold = Long.MAX_VALUE;
+		long warm = Long.MAX_VALUE;
+		//the lookups of one warm load
+		int hits = 0;
+		int misses = 0;
+		for(int i = 0; i < 5; i++){
+			ExpansionCache.shared.clear();
+			long start = System.nanoTime();
+			Evaluator.load(file.getPath(),newGlobalEnv());
+			cold = Math.min(cold,System.nanoTime() - start);
+
+			hits = ExpansionCache.shared.hits;
+			misses = ExpansionCache.shared.misses;
+			start = System.nanoTime();
+			Evaluator.load(file.getPath(),newGlobalEnv());
+			warm = Math.min(warm,System.nanoTime() - start);
+			hits = ExpansionCache.shared.hits - hits;
+			misses = ExpansionCache.shared.misses - misses;
+		}
+		System.out.println(String.format("expansion-cache cold\t%.1f ms",cold / 1e6));
+		System.out.println(String.format("expansion-cache warm\t%.1f ms (%d hits, %d misses)",warm / 1e6,hits,misses));
+	}
+
+	//Many interpreters running at once on a few threads, each with its
+	//own mode, output and a macro of the same name that expands to
+	//something of its own, and a define. Every one has to write what it
+	//writes when it runs alone, and stop counting as compiling once it's
+	//closed.
+	static void instances() throws Exception{
+		int compiling = Context.compiling.get();
+		final int count = 64;
+		final String[] programs = new String[count];
+		final String[] expected = new String[count];
+		for(int i = 0; i < count; i++){
+			programs[i] =
+				"(define-syntax tag (syntax-rules () ((_ x) (list \"v".concat(Integer.toString(i)).concat("\" x))))\n") +
+				"((lambda (loop) (loop loop 300)) (lambda (self n) (if (< 0 n) ((lambda (ignored) (self self (- n 1))) (write (tag n) (current-output-port))) #t)))\n" +
+				"(define base ".concat(Integer.toString(i)).concat(")\n(write (+ base 1000) (current-output-port))\n");
+			expected[i] = runProgram(programs[i],Vole.Mode.values()[i % 4]);
+			if(!expected[i].endsWith(Integer.toString(i + 1000)))
+				throw new Exception("Instance ".concat(Integer.toString(i)).concat(" lost the form after a define: ").concat(expected[i]));
+		}
+
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		long start = System.nanoTime();
+		ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+		for(int i = 0; i < count; i++){
+			final int n = i;
+			results.add(threads.submit(new Callable<String>(){
+				public String call() throws Exception{
+					return runProgram(programs[n],Vole.Mode.values()[n % 4]);
+				}
+			}));
+		}
+		for(int i = 0; i < count; i++){
+			if(!results.get(i).get().equals(expected[i])){
+				threads.shutdown();
+				throw new Exception("Instance ".concat(Integer.toString(i)).concat(" wrote something it doesn't write alone."));
+			}
+		}
+		long time = System.nanoTime() - start;
+		threads.shutdown();
+		if(Context.compiling.get() != compiling)
+			throw new Exception("Closed interpreters still count as compiling.");
+		System.out.println(String.format("instances\t%.1f ms (%d interpreters on 8 threads)",time / 1e6,count));
+	}
+
+	static String runProgram(String program, Vole.Mode mode){
+		StringWriter output = new StringWriter();
+		StringWriter error = new StringWriter();
+		Vole vole = new Vole(new StringReader(program),output,error);
+		vole.setMode(mode);
+		vole.eval();
+		vole.eval();
+		vole.eval();
+		vole.close();
+		return output.toString().concat(error.toString());
+	}
+
+	//Short requests that need macros.scm and define something, each on
+	//an interpreter made and loaded for it and each on one leased from a
+	//VolePool.
+	static void pool() throws Exception{
+		final String program = "(define xs (list 1 2 (cadr (list 3 4))))\n(write (reverse xs) (current-output-port))\n";
+		final int requests = 500;
+		ExecutorService threads = VolePool.requestThreads();
+		VolePool pool = new VolePool(8);
+
+		long fresh = Long.MAX_VALUE;
+		long leased = Long.MAX_VALUE;
+		for(int i = 0; i < 3; i++){
+			ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+			long start = System.nanoTime();
+			for(int j = 0; j < requests; j++){
+				results.add(threads.submit(new Callable<String>(){
+					public String call() throws Exception{
+						StringWriter output = new StringWriter();
+						Vole vole = new Vole(new StringReader(program),output,output);
+						vole.loadAll("macros.scm");
+						vole.eval();
+						vole.close();
+						return output.toString();
+					}
+				}));
+			}
+			check(results,"(4 2 1)");
+			fresh = Math.min(fresh,System.nanoTime() - start);
+
+			results.clear();
+			start = System.nanoTime();
+			for(int j = 0; j < requests; j++){
+				final StringWriter output = new StringWriter();
+				results.add(pool.submit(new StringReader(program),output,output,new VolePool.Request<String>(){
+					public String run(Vole vole) throws Exception{
+						vole.eval();
+						vole.writer.flush();
+						return output.toString();
+					}
+				}));
+			}
+			check(results,"(4 2 1)");
+			leased = Math.min(leased,System.nanoTime() - start);
+		}
+		threads.shutdown();
+		pool.shutdown();
+		System.out.println(String.format("pool new vole\t%.1f us/request",fresh / 1e3 / requests));
+		System.out.println(String.format("pool leased\t%.1f us/request",leased / 1e3 / requests));
+	}
+
+	static void check(ArrayList<Future<String>> results, String expected) throws Exception{
+		for(Future<String> result : results)
+			if(!result.get().equals(expected))
+				throw new Exception("A request wrote ".concat(result.get()).concat(" instead of ").concat(expected));
+	}
+
+	//Writing records to a file port with no buffer, flushed at the end
+	//of every line and with the default buffer.
+	static void ports() throws Exception{
+		File file = File.createTempFile("vole-port",".txt");
+		file.deleteOnExit();
+		final int records = 100000;
+		String[] policies = {"0", "(quote line)", "8192"};
+		String[] names = {"unbuffered", "line", "buffered"};
+		for(int p = 0; p < policies.length; p++){
+			String program =
+				"((lambda (port) ((lambda (loop) (loop loop ".concat(Integer.toString(records)).concat(")) ") +
+				"(lambda (self n) (if (< 0 n) ((lambda (ignored) (self self (- n 1))) ((lambda (ignored) (newline port)) (write (list n \"record\" 1.5) port))) (close-port port))))) " +
+				"(open-output-file \"".concat(file.getPath()).concat("\" ").concat(policies[p]).concat("))");
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < 3; i++){
+				Environment env = newGlobalEnv();
+				long start = System.nanoTime();
+				Evaluator.eval(new Expander(null).expandForm(Parser.parseSexp(new Lexer(program))),env);
+				best = Math.min(best,System.nanoTime() - start);
+			}
+			System.out.println(String.format("ports %s\t%.0f records/s",names[p],records / (best / 1e9)));
+		}
+	}
+
+	//Printing a long list and a deeply nested one, the way write does and
+	//with toString.
+	static void print() throws Exception{
+		Expression list = Pair.NIL;
+		Expression nested = Pair.NIL;
+		for(int i = 0; i < 100000; i++){
+			list = new Pair(NumberVal.valueOf(i),list);
+			nested = new Pair(nested,Pair.NIL);
+		}
+
+		long write = Long.MAX_VALUE;
+		long string = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++){
+			Writer out = new BufferedWriter(new FileWriter("/dev/null"));
+			long start = System.nanoTime();
+			Printer.printExpression(list,out);
+			Printer.printExpression(nested,out);
+			out.flush();
+			write = Math.min(write,System.nanoTime() - start);
+			out.close();
+
+			start = System.nanoTime();
+			list.toString();
+			nested.toString();
+			string = Math.min(string,System.nanoTime() - start);
+		}
+		System.out.println(String.format("print write\t%.1f ms (100k elements, 100k deep)",write / 1e6));
+		System.out.println(String.format("print toString\t%.1f ms",string / 1e6));
+	}
+
+	//A call with 100k arguments and a quoted list 100k deep, read,
+	//expanded and run in every mode, and a recursion 100k deep, which
+	//is stopped by maxDepth in every mode that counts it, and one that
+	//never ends in the CEK mode.
+	static void depth() throws Exception{
+		StringBuilder call = new StringBuilder("(write (list");
+		StringBuilder open = new StringBuilder();
+		StringBuilder close = new StringBuilder();
+		for(int i = 0; i < 100000; i++){
+			call.append(" (car (quote (1)))");
+			open.append('(');
+			close.append(')');
+		}
+		call.append(") (current-output-port))\n");
+		String nested = "(write (car (quote ".concat(open.toString()).concat("x").concat(close.toString()).concat(")) (current-output-port))\n");
+		String recursion = "(write ((lambda (sum) (sum sum 100000)) (lambda (self n) (if (= n 0) 0 (+ n (self self (- n 1)))))) (current-output-port))\n";
+		String runawayRecursion = "(write ((lambda (f) (f f 0)) (lambda (self n) (+ 1 (self self (+ n 1))))) (current-output-port))\n";
+
+		for(Vole.Mode mode : Vole.Mode.values()){
+			long start = System.nanoTime();
+			String[] wrote = runForm(call.toString(),mode);
+			if(wrote[0].length() != 200001 || wrote[1].length() > 0)
+				throw new Exception("A call with 100k arguments wrote ".concat(wrote[1]));
+			wrote = runForm(nested,mode);
+			if(wrote[0].length() != 199999 || wrote[1].length() > 0)
+				throw new Exception("A list 100k deep wrote ".concat(wrote[1]));
+			long time = System.nanoTime() - start;
+
+			//The default maxDepth fits the Java stack, so every mode but
+			//the CEK one stops at it rather than running out of stack. The
+			//CEK mode only stops at its maximum number of Frames, which a
+			//recursion that never ends has to reach rather than the end of
+			//the heap.
+			wrote = runForm(recursion,mode);
+			boolean stopped = wrote[1].contains(mode == Vole.Mode.CEK ? "calls and arguments waiting" : "Calls nested more than");
+			if(mode == Vole.Mode.CEK ? !wrote[0].equals("5000050000") && !stopped : !stopped)
+				throw new Exception("A recursion 100k deep wrote ".concat(wrote[0]).concat(wrote[1]));
+			if(mode == Vole.Mode.CEK){
+				String[] runaway = runForm(runawayRecursion,mode);
+				if(!runaway[1].contains("calls and arguments waiting"))
+					throw new Exception("A recursion that never ends in the CEK mode wrote ".concat(runaway[0]).concat(runaway[1]));
+			}
+			System.out.println(String.format("depth %s\t%.1f ms (recursion %s)",mode.toString().toLowerCase(),time / 1e6,wrote[0].length() > 0 ? "ran" : "stopped"));
+		}
+	}
+
+	//Escaping with call/cc in a loop in every mode, and going back into
+	//a continuation after its call/cc has returned, which only the CEK
+	//mode can do. The function call/cc calls sees the caller's bindings
+	//in every mode, in a loop so the tiered mode compiles the call.
+	static void callcc() throws Exception{
+		String escapes = "(write ((lambda (loop) (loop loop 10000)) (lambda (self n) (if (= n 0) 0 ((lambda (x) (self self (- n 1))) (call/cc (lambda (k) (+ 1 (k n)))))))) (current-output-port))\n";
+		String reentry = "(write ((lambda (saved) (if (eq? (car saved) 3) (list (quote done) (car saved)) ((car (cdr saved)) (list 3 (car (cdr saved)))))) (call/cc (lambda (k) (list 1 k)))) (current-output-port))\n";
+		String callerEnv = "(write ((lambda (f) ((lambda (loop) (loop loop 2000 0)) (lambda (self n acc) (if (= n 0) acc (self self (- n 1) ((lambda (y) (call/cc f)) 7)))))) (lambda (k) y)) (current-output-port))\n";
+		for(Vole.Mode mode : Vole.Mode.values()){
+			String[] wrote = runForm(callerEnv,mode);
+			if(!wrote[0].equals("7"))
+				throw new Exception("call/cc in ".concat(mode.toString()).concat(" mode wrote ").concat(wrote[0]).concat(wrote[1]));
+		}
+		for(Vole.Mode mode : Vole.Mode.values()){
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < 5; i++){
+				long start = System.nanoTime();
+				String[] wrote = runForm(escapes,mode);
+				best = Math.min(best,System.nanoTime() - start);
+				if(!wrote[0].equals("0"))
+					throw new Exception("Escaping with call/cc wrote ".concat(wrote[0]).concat(wrote[1]));
+			}
+			System.out.println(String.format("callcc %s\t%.1f us/escape",mode.toString().toLowerCase(),best / 1e3 / 10000));
+		}
+		String[] wrote = runForm(reentry,Vole.Mode.CEK);
+		if(!wrote[0].equals("(done 3)"))
+			throw new Exception("Going back into a continuation wrote ".concat(wrote[0]).concat(wrote[1]));
+	}
+
+	//10000 tasks each sending a number down one channel while the
+	//evaluation that spawned them adds up what it receives, in every
+	//mode, and a task that has to run while a loop is still going.
+	static void tasks() throws Exception{
+		final int count = 10000;
+		String program =
+			"(write ((lambda (ch) ((lambda (spawner) ((lambda (ignored) ((lambda (loop) (loop loop 0 0)) " +
+			"(lambda (self n acc) (if (= n ".concat(Integer.toString(count)).concat(") acc (self self (+ n 1) (+ acc (receive ch))))))) ") +
+			"(spawner spawner ".concat(Integer.toString(count)).concat("))) ") +
+			"(lambda (self n) (if (= n 0) #t ((lambda (t) (self self (- n 1))) (spawn (lambda () (send ch n)))))))) " +
+			"(make-channel 16)) (current-output-port))\n";
+		String expected = Long.toString((long) count * (count + 1) / 2);
+		//the loop has to give the task its turn before it ends
+		String preempted = "((lambda (t) ((lambda (loop) (loop loop 200000)) (lambda (self n) (if (= n 0) (write (quote main-done) (current-output-port)) (self self (- n 1)))))) " +
+			"(spawn (lambda () (write (quote task-ran) (current-output-port)))))\n";
+		for(Vole.Mode mode : Vole.Mode.values()){
+			long best = Long.MAX_VALUE;
+			for(int i = 0; i < 5; i++){
+				long start = System.nanoTime();
+				String[] wrote = runForm(program,mode);
+				best = Math.min(best,System.nanoTime() - start);
+				if(!wrote[0].equals(expected))
+					throw new Exception("Tasks sending on a channel wrote ".concat(wrote[0]).concat(wrote[1]));
+			}
+			String[] wrote = runForm(preempted,mode);
+			if(!wrote[0].equals("task-ranmain-done"))
+				throw new Exception("A task spawned before a long loop wrote ".concat(wrote[0]).concat(wrote[1]));
+			System.out.println(String.format("tasks %s\t%.2f us/task (%d tasks)",mode.toString().toLowerCase(),best / 1e3 / count,count));
+		}
+	}
+
+	//What a Vole writes to its output and error running program.
+	static String[] runForm(String program, Vole.Mode mode){
+		StringWriter output = new StringWriter();
+		StringWriter error = new StringWriter();
+		Vole vole = new Vole(new StringReader(program),output,error);
+		vole.setMode(mode);
+		vole.eval();
+		vole.close();
+		return new String[]{output.toString(),error.toString()};
+	}
+
+	static void run(String name) throws Exception{
+		if(name.equals("env-calls"))
+			envCalls();
+		else if(name.equals("modes"))
+			modes();
+		else if(name.equals("arith"))
+			arith();
+		else if(name.equals("flonum"))
+			flonum();
+		else if(name.equals("alloc"))
+			alloc();
+		else if(name.equals("parse"))
+			parse();
+		else if(name.equals("load"))
+			load();
+		else if(name.equals("fasl"))
+			fasl();
+		else if(name.equals("snapshot"))
+			snapshot();
+		else if(name.equals("expand"))
+			expand();
+		else if(name.equals("expansion-cache"))
+			expansionCache();
+		else if(name.equals("instances"))
+			instances();
+		else if(name.equals("pool"))
+			pool();
+		else if(name.equals("ports"))
+			ports();
+		else if(name.equals("print"))
+			print();
+		else if(name.equals("depth"))
+			depth();
+		else if(name.equals("callcc"))
+			callcc();
+		else if(name.equals("tasks"))
+			tasks();
+		else
+			throw new Exception("Unknown benchmark ".concat(name));
+	}
+
+	public static void main(String[] args) throws Exception{
+		String[] all = {"env-calls", "modes", "arith", "flonum", "alloc", "parse", "load", "fasl", "snapshot", "expand", "expansion-cache", "instances", "pool", "ports", "print", "depth", "callcc", "tasks"};
+		for(String name : args.length > 0 ? args : all)
+			run(name);
+	}
+}
@@ -0,0 +1,458 @@
+package Vole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//A form compiled to bytecode for the VM. Ops holds opcodes followed by
+//their operands, constants holds everything an operand can refer to.
+//Code is a Node so lambdas whose body is Code run anywhere a body can.
+class Code extends Node{
+	//push constants[k]
+	static final int CONST = 0;
+	//push the argument in slot of the frame depth parents up,
+	//constants[k] is the LocalRef to fall back on
+	static final int LOAD_LOCAL = 1;
+	//push the value of the GlobalRef in constants[k]
+	static final int LOAD_GLOBAL = 2;
+	//pop, jump to target unless it was #t
+	static final int JUMP_IF_FALSE = 3;
+	static final int JUMP = 4;
+	//push a Lambda for the LambdaForm in constants[k]
+	static final int CLOSURE = 5;
+	//pop a value and define constants[k] as it, push nothing useful
+	static final int DEFINE = 6;
+	static final int CURRENT_ENV = 7;
+	//load the file named by constants[k]
+	static final int LOAD = 8;
+	static final int TOGGLE_DEBUG = 9;
+	//call the function under n args
+	static final int CALL = 10;
+	//same, reusing the current frame
+	static final int TAILCALL = 11;
+	static final int RETURN = 12;
+	//throw the message in constants[k]
+	static final int FAIL = 13;
+	//load the files named in the list constants[k]
+	static final int LOAD_ALL = 14;
+
+	int[] ops;
+	Expression[] constants;
+	int maxStack;
+	Expression source;
+
+	Code(int[] ops, Expression[] constants, int maxStack, Expression source){
+		this.ops = ops;
+		this.constants = constants;
+		this.maxStack = maxStack;
+		this.source = source;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		return VM.run(this,env);
+	}
+
+	public String toString(){
+		return source == null ? "<code>" : source.toString();
+	}
+}
+
+//Compiles a form into Code. Scopes and special forms are worked out the
+//same way as for the Node Compiler.
+class BytecodeCompiler{
+	ArrayList<Integer> ops = new ArrayList<Integer>();
+	ArrayList<Expression> constants = new ArrayList<Expression>();
+	int stack = 0;
+	int maxStack = 0;
+	Environment env;
+
+	BytecodeCompiler(Environment env){
+		this.env = env;
+	}
+
+	static Code compile(Expression exp, Environment env){
+		return compileBody(exp,null,env);
+	}
+
+	static Code compileBody(Expression exp, Scope scope, Environment env){
+		BytecodeCompiler compiler = new BytecodeCompiler(env);
+		compiler.compile(exp,scope,true);
+		compiler.emit(Code.RETURN);
+		return compiler.finish(exp);
+	}
+
+	Code finish(Expression source){
+		int[] code = new int[ops.size()];
+		for(int i = 0; i < code.length; i++)
+			code[i] = ops.get(i);
+		return new Code(code,constants.toArray(new Expression[constants.size()]),maxStack,source);
+	}
+
+	void emit(int op){
+		ops.add(op);
+	}
+
+	void emit(int op, int operand){
+		ops.add(op);
+		ops.add(operand);
+	}
+
+	int constant(Expression exp){
+		constants.add(exp);
+		return constants.size() - 1;
+	}
+
+	void push(int n){
+		stack += n;
+		maxStack = Math.max(maxStack,stack);
+	}
+
+	//Emits a jump and returns where its target goes.
+	int jump(int op){
+		emit(op,-1);
+		return ops.size() - 1;
+	}
+
+	void patch(int at){
+		ops.set(at,ops.size());
+	}
+
+	void compile(Expression exp, Scope scope, boolean tail){
+		//quoted values from the expander
+		if(exp instanceof ConstantNode){
+			emit(Code.CONST,constant(((ConstantNode) exp).val));
+			push(1);
+			return;
+		}
+		if(exp == null || exp.isNode() || (exp.isAtom() && !exp.isSymbol())){
+			emit(Code.CONST,constant(exp));
+			push(1);
+			return;
+		}
+
+		if(exp.isSymbol()){
+			compileSymbol((SymbolVal) exp,scope,false);
+			return;
+		}
+
+		if(!exp.isList()){
+			fail("Eval couldn't couldn't figure out how to evaluate that statement. Maybe you should rethink it.");
+			return;
+		}
+
+		Pair list = (Pair) exp;
+		Expression car = list.getCar();
+		if(car.isSymbol() && Analyzer.isSpecialForm((SymbolVal) car,scope,env)){
+			String name = ((SymbolVal) car).getIdentifier();
+			if(name.equals("if"))
+				compileIf(list,scope,tail);
+			else if(name.equals("lambda"))
+				compileLambda(list,scope);
+			else if(name.equals("define"))
+				compileDefine(list,scope);
+			else if(name.equals("current-environment")){
+				emit(Code.CURRENT_ENV);
+				push(1);
+			}else if(name.equals("load"))
+				compileLoad(list);
+			else if(name.equals("load-all"))
+				compileLoadAll(list);
+			else{
+				emit(Code.TOGGLE_DEBUG);
+				push(1);
+			}
+			return;
+		}
+
+		if(car.isSymbol())
+			compileSymbol((SymbolVal) car,scope,true);
+		else
+			compile(car,scope,false);
+
+		int argc = 0;
+		Expression rest = list.getCdr();
+		while(rest.isPair()){
+			compile(((Pair) rest).getCar(),scope,false);
+			argc++;
+			rest = ((Pair) rest).getCdr();
+		}
+		emit(tail ? Code.TAILCALL : Code.CALL,argc);
+		push(-argc);
+	}
+
+	void compileSymbol(SymbolVal sym, Scope scope, boolean operator){
+		LocalRef ref = Analyzer.resolve(sym,scope);
+		if(ref != null){
+			emit(Code.LOAD_LOCAL,ref.depth);
+			ops.add(ref.slot);
+			ops.add(constant(ref));
+		}else{
+			emit(Code.LOAD_GLOBAL,constant(new GlobalRef(sym,operator)));
+		}
+		push(1);
+	}
+
+	void fail(String message){
+		emit(Code.FAIL,constant(new StringVal(message)));
+		push(1);
+	}
+
+	void compileIf(Pair list, Scope scope, boolean tail){
+		compile(Compiler.nth(list,1),scope,false);
+		int toElse = jump(Code.JUMP_IF_FALSE);
+		push(-1);
+		compile(Compiler.nth(list,2),scope,tail);
+		int toEnd = jump(Code.JUMP);
+		push(-1);
+		patch(toElse);
+		compile(Compiler.nth(list,3),scope,tail);
+		patch(toEnd);
+	}
+
+	void compileLambda(Pair list, Scope scope){
+		Params params = Params.parse(Compiler.nth(list,1));
+		if(params == null){
+			fail("Lambda expects the first argument to be a symbol, nil or a list of symbols.");
+			return;
+		}
+		Code body = compileBody(Compiler.nth(list,2),Analyzer.scopeFor(params,scope),env);
+		emit(Code.CLOSURE,constant(new LambdaForm(params,body,Compiler.nth(list,2))));
+		push(1);
+	}
+
+	void compileDefine(Pair list, Scope scope){
+		Expression name = Compiler.nth(list,1);
+		if(name == null){
+			fail("define expects at least two arguments.");
+			return;
+		}
+		if(!name.isSymbol()){
+			fail("define expects a symbol as the first argument.");
+			return;
+		}
+		compile(Compiler.nth(list,2),scope,false);
+		emit(Code.DEFINE,constant(name));
+	}
+
+	void compileLoad(Pair list){
+		Expression filename = Compiler.nth(list,1);
+		if(filename == null || !filename.isString()){
+			fail("(load _) expects a filename as the first argument.");
+			return;
+		}
+		emit(Code.LOAD,constant(filename));
+		push(1);
+	}
+
+	void compileLoadAll(Pair list){
+		if(Loader.filenames(list.getCdr()) == null){
+			fail("(load-all _ ...) expects filenames as arguments.");
+			return;
+		}
+		emit(Code.LOAD_ALL,constant(list.getCdr()));
+		push(1);
+	}
+}
+
+//Where to go back to when a call made from Code returns.
+class CallFrame{
+	Code code;
+	int pc;
+	Environment env;
+	int base;
+
+	CallFrame(Code code, int pc, Environment env, int base){
+		this.code = code;
+		this.pc = pc;
+		this.env = env;
+		this.base = base;
+	}
+}
+
+//Runs Code. Calls between lambdas whose bodies are Code stay inside
+//this loop: a call pushes a CallFrame and a tail call just replaces
+//the current code and environment, so neither uses the Java stack.
+//CallFrames count against the Context's maxDepth, and calls let tasks
+//run, like bounces of the trampoline do.
+class VM{
+
+	VM(){}
+
+	//a tail call that leaves the VM falls through to RETURN
+	@SuppressWarnings("fallthrough")
+	static Expression run(Code code, Environment env) throws Exception{
+		Expression[] stack = new Expression[Math.max(16,code.maxStack)];
+		int sp = 0;
+		int base = 0;
+		int pc = 0;
+		ArrayList<CallFrame> frames = new ArrayList<CallFrame>();
+		//found when it is first needed
+		Context context = null;
+
+		int[] ops = code.ops;
+		Expression[] constants = code.constants;
+
+		try{
+			while(true){
+				switch(ops[pc++]){
+				case Code.CONST:
+					stack[sp++] = constants[ops[pc++]];
+					break;
+
+				case Code.LOAD_LOCAL:{
+					int depth = ops[pc++];
+					int slot = ops[pc++];
+					LocalRef ref = (LocalRef) constants[ops[pc++]];
+					Environment frame = env;
+					for(int i = 0; i < depth && frame != null; i++)
+						frame = frame.getParent();
+					Expression val = frame == null ? null : frame.getSlot(slot,ref.getName());
+					stack[sp++] = val != null ? val : ref.lookUp(env);
+					break;
+				}
+
+				case Code.LOAD_GLOBAL:
+					stack[sp++] = ((GlobalRef) constants[ops[pc++]]).execute(env);
+					break;
+
+				case Code.JUMP_IF_FALSE:{
+					int target = ops[pc++];
+					Expression a = stack[--sp];
+					if(a != BooleanVal.TRUE)
+						pc = target;
+					break;
+				}
+
+				case Code.JUMP:
+					pc = ops[pc];
+					break;
+
+				case Code.CLOSURE:
+					stack[sp++] = ((LambdaForm) constants[ops[pc++]]).makeLambda(env);
+					break;
+
+				case Code.DEFINE:{
+					SymbolVal name = (SymbolVal) constants[ops[pc++]];
+					Expression val = stack[--sp];
+					if(env.lookUp(name) != null)
+						throw new Exception("Symbol ".concat(name.getIdentifier()).concat(" is already defined."));
+					env.add(name,val);
+					stack[sp++] = null;
+					break;
+				}
+
+				case Code.CURRENT_ENV:
+					stack[sp++] = env;
+					break;
+
+				case Code.LOAD:
+					Evaluator.load(((StringVal) constants[ops[pc++]]).getVal(),env);
+					stack[sp++] = null;
+					break;
+
+				case Code.LOAD_ALL:
+					Loader.loadAll(Loader.filenames(constants[ops[pc++]]),env);
+					stack[sp++] = null;
+					break;
+
+				case Code.TOGGLE_DEBUG:
+					stack[sp++] = BooleanVal.valueOf(Context.current().toggleDebug());
+					break;
+
+				case Code.FAIL:
+					throw new Exception(((StringVal) constants[ops[pc++]]).getVal());
+
+				case Code.CALL:
+				case Code.TAILCALL:{
+					boolean tail = ops[pc - 1] == Code.TAILCALL;
+					int argc = ops[pc++];
+					int fnAt = sp - argc - 1;
+					Expression fn = stack[fnAt];
+
+					if(fn != null && fn.isLambda() && ((Lambda) fn).getParams().takes(argc) && ((Lambda) fn).getExp() instanceof Code){
+						Lambda lambda = (Lambda) fn;
+						Environment lambdaEnv = lambda.getEvalEnvironment(stack,fnAt + 1,argc,env);
+						Code body = (Code) lambda.getExp();
+						//loops are tail calls, so tasks get their turn here
+						if(Scheduler.live.get() > 0){
+							if(context == null)
+								context = Context.current();
+							Scheduler.tick(context);
+						}
+						if(tail){
+							sp = base;
+						}else{
+							if(context == null)
+								context = Context.current();
+							if(context.depth >= context.maxDepth)
+								throw Evaluator.tooDeep(context);
+							context.depth++;
+							sp = fnAt;
+							frames.add(new CallFrame(code,pc,env,base));
+							base = sp;
+						}
+						code = body;
+						ops = code.ops;
+						constants = code.constants;
+						env = lambdaEnv;
+						pc = 0;
+						if(sp + code.maxStack > stack.length)
+							stack = Arrays.copyOf(stack,Math.max(stack.length * 2,sp + code.maxStack));
+						break;
+					}
+
+					Expression result;
+					if(argc == 2 && fn instanceof BinaryFunction && !Context.debugging()){
+						result = ((BinaryFunction) fn).call(stack[sp - 2],stack[sp - 1]);
+						sp = fnAt;
+					}else{
+						Pair args = Pair.NIL;
+						for(int i = sp - 1; i > fnAt; i--)
+							args = new Pair(stack[i],args);
+						sp = fnAt;
+						result = Evaluator.apply_tramp(fn,args,env);
+					}
+
+					//A tail call out of the outermost frame can hand its
+					//Thunk back to the trampoline that called us.
+					if(tail && frames.isEmpty())
+						return result;
+
+					result = Evaluator.trampoline(result);
+					if(!tail){
+						stack[sp++] = result;
+						break;
+					}
+					stack[base] = result;
+					sp = base + 1;
+				}
+				//a tail call that didn't stay in the VM returns its result
+				//fall through
+
+				case Code.RETURN:{
+					Expression result = stack[sp - 1];
+					if(frames.isEmpty())
+						return result;
+					CallFrame frame = frames.remove(frames.size() - 1);
+					context.depth--;
+					sp = base;
+					code = frame.code;
+					ops = code.ops;
+					constants = code.constants;
+					pc = frame.pc;
+					env = frame.env;
+					base = frame.base;
+					stack[sp++] = result;
+					break;
+				}
+
+				default:
+					throw new Exception("Unknown opcode ".concat(Integer.toString(ops[pc - 1])));
+				}
+			}
+		}finally{
+			//frames an error left behind
+			if(context != null)
+				context.depth -= frames.size();
+		}
+	}
+}
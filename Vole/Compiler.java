@@ -0,0 +1,359 @@
+package Vole;
+
+import java.util.ArrayList;
+
+//Nodes that the Compiler turns forms into. Each special form and each
+//kind of reference gets its own node so nothing has to be looked at
+//twice once a form has been compiled.
+
+class ConstantNode extends Node{
+	Expression val;
+
+	ConstantNode(Expression val){
+		this.val = val;
+	}
+
+	Expression execute(Environment env){
+		return val;
+	}
+
+	public String toString(){
+		return val == null ? "<unspecified>" : val.toString();
+	}
+}
+
+//A form the evaluator would reject. The error is raised when the form
+//is run, not when it is compiled, same as the interpreter.
+class FailNode extends Node{
+	String message;
+
+	FailNode(String message){
+		this.message = message;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		throw new Exception(message);
+	}
+
+	public String toString(){
+		return "<error ".concat(message).concat(">");
+	}
+}
+
+//A symbol that is not a lambda argument, looked up at runtime. Names
+//that have only ever been bound at the top level are cached until the
+//top level frame's version changes.
+class GlobalRef extends Node{
+	SymbolVal name;
+	boolean operator;
+	GlobalCache cache;
+
+	GlobalRef(SymbolVal name, boolean operator){
+		this.name = name;
+		this.operator = operator;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		Environment root = env.getRoot();
+		int version = root.getVersion();
+		GlobalCache c = cache;
+		if(c != null && root == c.root && version == c.version)
+			return c.val;
+
+		Expression val = env.lookUp(name);
+		if(val != null){
+			//Nothing searched before the top level frame can bind a
+			//name that has never been local under it, so if the top
+			//level frame has it that is what every lookup from here will
+			//find.
+			if(!root.isLocalName(name) && root.lookUpFrame(name) == val)
+				cache = new GlobalCache(root,version,val);
+			return val;
+		}
+		else if(operator)
+			throw new Exception("Undefined symbol: ".concat(name.getIdentifier()));
+		else
+			throw new Exception("Symbol ".concat(name.getIdentifier()).concat(" is undefined."));
+	}
+
+	public String toString(){
+		return name.toString();
+	}
+}
+
+//What a GlobalRef found and when. Kept in one object so threads
+//sharing the node never see half of an update.
+class GlobalCache{
+	final Environment root;
+	final int version;
+	final Expression val;
+
+	GlobalCache(Environment root, int version, Expression val){
+		this.root = root;
+		this.version = version;
+		this.val = val;
+	}
+}
+
+class IfNode extends Node{
+	Node test;
+	Node consequent;
+	Node alternative;
+
+	IfNode(Node test, Node consequent, Node alternative){
+		this.test = test;
+		this.consequent = consequent;
+		this.alternative = alternative;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		Expression a = Evaluator.trampoline(test.execute(env));
+		if(a == BooleanVal.TRUE)
+			return consequent.execute(env);
+		else
+			return alternative.execute(env);
+	}
+
+	public String toString(){
+		return "(if ".concat(test.toString()).concat(" ").concat(consequent.toString()).concat(" ").concat(alternative.toString()).concat(")");
+	}
+}
+
+class DefineNode extends Node{
+	SymbolVal name;
+	Node value;
+
+	DefineNode(SymbolVal name, Node value){
+		this.name = name;
+		this.value = value;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		if(env.lookUp(name) != null)
+			throw new Exception("Symbol ".concat(name.getIdentifier()).concat(" is already defined."));
+		env.add(name,Evaluator.trampoline(value.execute(env)));
+		return null;
+	}
+
+	public String toString(){
+		return "(define ".concat(name.toString()).concat(" ").concat(value.toString()).concat(")");
+	}
+}
+
+class CurrentEnvironmentNode extends Node{
+	CurrentEnvironmentNode(){}
+
+	Expression execute(Environment env){
+		return env;
+	}
+
+	public String toString(){
+		return "(current-environment)";
+	}
+}
+
+class LoadNode extends Node{
+	String filename;
+
+	LoadNode(String filename){
+		this.filename = filename;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		Evaluator.load(filename,env);
+		return null;
+	}
+
+	public String toString(){
+		return "(load \"".concat(filename).concat("\")");
+	}
+}
+
+class LoadAllNode extends Node{
+	String[] filenames;
+
+	LoadAllNode(String[] filenames){
+		this.filenames = filenames;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		Loader.loadAll(filenames,env);
+		return null;
+	}
+
+	public String toString(){
+		String s = "(load-all";
+		for(String filename : filenames)
+			s = s.concat(" \"").concat(filename).concat("\"");
+		return s.concat(")");
+	}
+}
+
+class ToggleDebugNode extends Node{
+	ToggleDebugNode(){}
+
+	Expression execute(Environment env){
+		return BooleanVal.valueOf(Context.current().toggleDebug());
+	}
+
+	public String toString(){
+		return "(toggle-debug)";
+	}
+}
+
+class CallNode extends Node{
+	Node fn;
+	Node[] args;
+	boolean tail;
+
+	CallNode(Node fn, Node[] args, boolean tail){
+		this.fn = fn;
+		this.args = args;
+		this.tail = tail;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		Expression f = Evaluator.trampoline(fn.execute(env));
+		Expression[] vals = new Expression[args.length];
+		for(int i = 0; i < args.length; i++)
+			vals[i] = Evaluator.trampoline(args[i].execute(env));
+
+		//Calls to a lambda that takes this many arguments skip apply and
+		//only build a Thunk when the call is in tail position. Otherwise
+		//the body runs from here, with vals cleared so this frame doesn't
+		//keep the arguments alive for as long as the body runs.
+		if(f != null && f.isLambda() && ((Lambda) f).getParams().takes(vals.length)){
+			Lambda lambda = (Lambda) f;
+			if(tail)
+				return new Thunk(lambda.getExp(),lambda.getEvalEnvironment(vals,0,vals.length,env));
+			return Evaluator.callBody(lambda.getExp(),lambda.bindAll(vals,env));
+		}
+
+		if(vals.length == 2 && f instanceof BinaryFunction && !Context.debugging())
+			return ((BinaryFunction) f).call(vals[0],vals[1]);
+
+		Pair argList = Pair.NIL;
+		for(int i = vals.length - 1; i >= 0; i--)
+			argList = new Pair(vals[i],argList);
+
+		Expression result = Evaluator.apply_tramp(f,argList,env);
+		return tail ? result : Evaluator.trampoline(result);
+	}
+
+	public String toString(){
+		StringBuilder builder = new StringBuilder("(");
+		builder.append(fn.toString());
+		for(Node arg : args)
+			builder.append(" ").append(arg.toString());
+		return builder.append(")").toString();
+	}
+}
+
+//Turns a form into a tree of Nodes in one pass. Special forms are
+//recognized once here instead of every time they are evaluated and
+//lambda arguments become LocalRefs like in the Analyzer.
+class Compiler{
+
+	Compiler(){}
+
+	static Node compile(Expression exp, Environment env){
+		return compile(exp,null,env,true);
+	}
+
+	static Node compile(Expression exp, Scope scope, Environment env, boolean tail){
+		if(exp == null)
+			return new ConstantNode(null);
+
+		if(exp.isNode())
+			return (Node) exp;
+
+		if(exp.isSymbol())
+			return compileSymbol((SymbolVal) exp,scope,false);
+
+		if(exp.isAtom())
+			return new ConstantNode(exp);
+
+		if(!exp.isList())
+			return new FailNode("Eval couldn't couldn't figure out how to evaluate that statement. Maybe you should rethink it.");
+
+		Pair list = (Pair) exp;
+		Expression car = list.getCar();
+		if(car.isSymbol() && Analyzer.isSpecialForm((SymbolVal) car,scope,env)){
+			String name = ((SymbolVal) car).getIdentifier();
+			if(name.equals("if"))
+				return compileIf(list,scope,env,tail);
+			else if(name.equals("lambda"))
+				return compileLambda(list,scope,env);
+			else if(name.equals("define"))
+				return compileDefine(list,scope,env);
+			else if(name.equals("current-environment"))
+				return new CurrentEnvironmentNode();
+			else if(name.equals("load"))
+				return compileLoad(list);
+			else if(name.equals("load-all"))
+				return compileLoadAll(list);
+			else
+				return new ToggleDebugNode();
+		}
+
+		Node fn = car.isSymbol() ? compileSymbol((SymbolVal) car,scope,true) : compile(car,scope,env,false);
+		ArrayList<Node> args = new ArrayList<Node>();
+		Expression rest = list.getCdr();
+		while(rest.isPair()){
+			args.add(compile(((Pair) rest).getCar(),scope,env,false));
+			rest = ((Pair) rest).getCdr();
+		}
+		return new CallNode(fn,args.toArray(new Node[args.size()]),tail);
+	}
+
+	static Node compileSymbol(SymbolVal sym, Scope scope, boolean operator){
+		LocalRef ref = Analyzer.resolve(sym,scope);
+		return ref != null ? ref : new GlobalRef(sym,operator);
+	}
+
+	static Expression nth(Expression list, int n){
+		for(int i = 0; i < n && list.isPair(); i++)
+			list = ((Pair) list).getCdr();
+		return list.isPair() ? ((Pair) list).getCar() : null;
+	}
+
+	static Node compileIf(Pair list, Scope scope, Environment env, boolean tail){
+		Node test = compile(nth(list,1),scope,env,false);
+		Node consequent = compile(nth(list,2),scope,env,tail);
+		Node alternative = compile(nth(list,3),scope,env,tail);
+		return new IfNode(test,consequent,alternative);
+	}
+
+	static Node compileLambda(Pair list, Scope scope, Environment env){
+		Params params = Params.parse(nth(list,1));
+		if(params == null)
+			return new FailNode("Lambda expects the first argument to be a symbol, nil or a list of symbols.");
+		Node body = compile(nth(list,2),Analyzer.scopeFor(params,scope),env,true);
+		if(Context.current().mode == Vole.Mode.TIERED)
+			body = new TierNode(body);
+		return new LambdaForm(params,body,nth(list,2));
+	}
+
+	static Node compileDefine(Pair list, Scope scope, Environment env){
+		Expression name = nth(list,1);
+		if(name == null)
+			return new FailNode("define expects at least two arguments.");
+		if(!name.isSymbol())
+			return new FailNode("define expects a symbol as the first argument.");
+		return new DefineNode((SymbolVal) name,compile(nth(list,2),scope,env,false));
+	}
+
+	static Node compileLoad(Pair list){
+		Expression filename = nth(list,1);
+		if(filename == null || !filename.isString())
+			return new FailNode("(load _) expects a filename as the first argument.");
+		return new LoadNode(((StringVal) filename).getVal());
+	}
+
+	static Node compileLoadAll(Pair list){
+		String[] filenames = Loader.filenames(list.getCdr());
+		if(filenames == null)
+			return new FailNode("(load-all _ ...) expects filenames as arguments.");
+		return new LoadAllNode(filenames);
+	}
+}
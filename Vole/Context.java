@@ -0,0 +1,134 @@
+package Vole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//What one interpreter has to itself apart from its top level: how forms
+//are run, the debug flag, how deep calls are, the current ports, the
+//macros and the tasks. Evaluator and the builtins find the Context of
+//the interpreter running on their thread, a Vole enters its own for as
+//long as one of its methods runs. Code run outside of any Vole gets a
+//Context of its own per thread.
+class Context{
+	static final ThreadLocal<Context> current = new ThreadLocal<Context>(){
+		protected Context initialValue(){
+			return new Context();
+		}
+	};
+
+	//How many Contexts have debug on, and how many compile what they
+	//run. Evaluator looks at these before looking for its Context,
+	//which costs more than a volatile read. A Context stops counting
+	//when it is reset or closed, see Vole.close.
+	static final AtomicInteger debugging = new AtomicInteger();
+	static final AtomicInteger compiling = new AtomicInteger();
+
+	//Measured on the default 1MB Java stack, the interpreted mode runs
+	//out of it at a few hundred calls that each go through a builtin or
+	//two, so this leaves room for heavier ones.
+	static final int MAX_DEPTH = Integer.getInteger("vole.max.depth",250);
+
+	//set with setMode
+	Vole.Mode mode = Vole.Mode.INTERPRETED;
+	boolean debug;
+
+	//How many calls are waiting for the one being run to return, and
+	//how many there may be.
+	int depth;
+	int maxDepth = MAX_DEPTH;
+
+	Port input;
+	Port output;
+	Port error;
+
+	Map<SymbolVal,SyntaxRules> macros = new HashMap<SymbolVal,SyntaxRules>();
+	//Which macros were defined when an expansion was made, see
+	//Expander.version.
+	long macrosVersion;
+	//Expansions of forms that have been expanded before, by the identity
+	//of the form, so code that is evaluated again isn't expanded again.
+	ExpansionMemo memo = new ExpansionMemo();
+
+	//the tasks made with spawn, made when first needed
+	Scheduler scheduler;
+
+	Context(){}
+
+	static Context current(){
+		return current.get();
+	}
+
+	//Makes context the current one on this thread and returns the one
+	//to give back to exit.
+	static Context enter(Context context){
+		Context previous = current.get();
+		current.set(context);
+		return previous;
+	}
+
+	static void exit(Context previous){
+		current.set(previous);
+	}
+
+	void setMode(Vole.Mode mode){
+		if(this.mode == Vole.Mode.INTERPRETED && mode != Vole.Mode.INTERPRETED)
+			compiling.incrementAndGet();
+		else if(this.mode != Vole.Mode.INTERPRETED && mode == Vole.Mode.INTERPRETED)
+			compiling.decrementAndGet();
+		this.mode = mode;
+	}
+
+	//The Scheduler for this Context's tasks, made the first time one is
+	//spawned or waited on.
+	Scheduler scheduler(){
+		if(scheduler == null)
+			scheduler = new Scheduler();
+		return scheduler;
+	}
+
+	//How the current Context runs forms.
+	static Vole.Mode mode(){
+		return compiling.get() > 0 ? current().mode : Vole.Mode.INTERPRETED;
+	}
+
+	static boolean debugging(){
+		return debugging.get() > 0 && current().debug;
+	}
+
+	//Goes back to template's mode, maximum depth and macros, with debug
+	//off and no tasks. The ports are left as they are.
+	void reset(Context template){
+		setMode(template.mode);
+		if(debug)
+			toggleDebug();
+		macros = new HashMap<SymbolVal,SyntaxRules>(template.macros);
+		macrosVersion = template.macrosVersion;
+		memo = new ExpansionMemo();
+		maxDepth = template.maxDepth;
+		depth = 0;
+		if(scheduler != null)
+			Scheduler.live.addAndGet(-scheduler.count);
+		scheduler = null;
+	}
+
+	//Takes this Context out of the counts above and stops its tasks
+	//counting as live. It isn't used after this.
+	void close(){
+		setMode(Vole.Mode.INTERPRETED);
+		if(debug)
+			toggleDebug();
+		if(scheduler != null)
+			Scheduler.live.addAndGet(-scheduler.count);
+		scheduler = null;
+	}
+
+	boolean toggleDebug(){
+		debug = !debug;
+		if(debug)
+			debugging.incrementAndGet();
+		else
+			debugging.decrementAndGet();
+		return debug;
+	}
+}
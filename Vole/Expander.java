@@ -0,0 +1,585 @@
+package Vole;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//The macro expander, in Java. It does the rewrites macro-expand in
+//macros.scm does, and expands macros made with define-syntax and
+//syntax-rules:
+//	(quote x)			x, as a constant
+//	(let (var val) body)		((lambda var body) val)
+//	(define name val)		((lambda name <the next form read>) val)
+//	(lambda args body)		only body is expanded
+//	(define-syntax name (syntax-rules (literal ...) (pattern template) ...))
+//Macros aren't hygienic, a template's symbols mean whatever they mean
+//where the macro is used.
+class Expander{
+	static final SymbolVal QUOTE = SymbolVal.intern("quote");
+	static final SymbolVal LET = SymbolVal.intern("let");
+	static final SymbolVal DEFINE = SymbolVal.intern("define");
+	static final SymbolVal LAMBDA = SymbolVal.intern("lambda");
+	static final SymbolVal DEFINE_SYNTAX = SymbolVal.intern("define-syntax");
+	static final SymbolVal SYNTAX_RULES = SymbolVal.intern("syntax-rules");
+
+	//The version of a Context's macros names the macros it has, so
+	//expansions made with other macros are never taken for its own. A
+	//Context starts out at 0, with no macros, and each definition that
+	//changes something moves it to a hash of the old version and that
+	//definition. Interpreters that define the same macros in the same
+	//order end up at the same versions and share their expansions, in
+	//this run and any other, see Fasl.
+
+	//the macros, in the Context the expander was made in
+	Context context;
+	//where define reads the form its name is bound in, null to leave
+	//define alone
+	Port input;
+	//set when a define read from input or a macro was defined, the
+	//expansion can't be reused
+	boolean sideEffects;
+
+	Expander(Port input){
+		this.context = Context.current();
+		this.input = input;
+	}
+
+	//The expansion of form. Forms typed at the REPL are also looked for
+	//in the ExpansionCache by their contents.
+	static Expression expand(Expression form, Port input) throws Exception{
+		if(!form.isPair())
+			return form;
+		Context context = Context.current();
+		Expression expansion = context.memo.get(form);
+		if(expansion != null)
+			return expansion;
+
+		long version = context.macrosVersion;
+		long hash = ExpansionCache.hash(form);
+		expansion = ExpansionCache.shared.get(ExpansionCache.INPUT,hash,0,form,version);
+		if(expansion != null){
+			context.memo.put(form,expansion);
+			return expansion;
+		}
+
+		Expander expander = new Expander(input);
+		expansion = expander.expandForm(form);
+		if(!expander.sideEffects){
+			context.memo.put(form,expansion);
+			ExpansionCache.shared.put(ExpansionCache.INPUT,hash,0,form,expansion,version);
+		}
+		return expansion;
+	}
+
+	//The expansion of the form at position in a loaded file, from the
+	//ExpansionCache if the same file has been loaded before.
+	static Expression expandLoaded(Expression form, String source, long hash, int position) throws Exception{
+		if(!form.isPair())
+			return form;
+		long version = Context.current().macrosVersion;
+		Expression expansion = ExpansionCache.shared.get(source,hash,position,null,version);
+		if(expansion != null)
+			return expansion;
+
+		Expander expander = new Expander(null);
+		expansion = expander.expandForm(form);
+		if(!expander.sideEffects)
+			ExpansionCache.shared.put(source,hash,position,null,expansion,version);
+		return expansion;
+	}
+
+	Expression expandForm(Expression form) throws Exception{
+		while(form.isPair()){
+			Pair list = (Pair) form;
+			Expression keyword = list.getCar();
+			if(keyword == QUOTE)
+				return new ConstantNode(Compiler.nth(list,1));
+			if(keyword == LET)
+				return expandLet(list);
+			if(keyword == DEFINE && input != null)
+				return expandDefine(list);
+			if(keyword == LAMBDA)
+				return expandLambda(list);
+			if(keyword == DEFINE_SYNTAX)
+				return defineSyntax(list);
+
+			SyntaxRules macro = keyword != null && keyword.isSymbol() ? context.macros.get(keyword) : null;
+			if(macro == null)
+				return expandList(form);
+			form = macro.transcribe(list);
+		}
+		return form;
+	}
+
+	//Each element expanded, the same list if none of them changed. The
+	//elements after the last one that changed are shared with form.
+	Expression expandList(Expression form) throws Exception{
+		ArrayList<Expression> cars = new ArrayList<Expression>();
+		int lastChanged = -1;
+		Expression rest = form;
+		while(rest.isPair()){
+			Pair list = (Pair) rest;
+			Expression car = expandForm(list.getCar());
+			if(car != list.getCar())
+				lastChanged = cars.size();
+			cars.add(car);
+			rest = list.getCdr();
+		}
+		if(lastChanged < 0)
+			return form;
+
+		Expression expansion = form;
+		for(int i = 0; i <= lastChanged; i++)
+			expansion = ((Pair) expansion).getCdr();
+		for(int i = lastChanged; i >= 0; i--)
+			expansion = new Pair(cars.get(i),expansion);
+		return expansion;
+	}
+
+	Expression expandLet(Pair list) throws Exception{
+		Expression bindings = Compiler.nth(list,1);
+		if(bindings == null || !bindings.isPair())
+			throw new Exception("let expects a (name value) pair as the first argument.");
+		Expression name = Compiler.nth(bindings,0);
+		Expression value = Compiler.nth(bindings,1);
+		Expression lambda = list(LAMBDA,name,Compiler.nth(list,2));
+		return expandForm(list(lambda,value));
+	}
+
+	Expression expandDefine(Pair list) throws Exception{
+		Lexer lexer = input.getLexer();
+		Expression next = lexer == null ? null : Parser.parseSexp(lexer);
+		if(next == null)
+			throw new Exception("define expects a form to bind its name in.");
+		sideEffects = true;
+		Expression lambda = list(LAMBDA,Compiler.nth(list,1),next);
+		return expandForm(list(lambda,Compiler.nth(list,2)));
+	}
+
+	Expression expandLambda(Pair list) throws Exception{
+		Expression body = Compiler.nth(list,2);
+		if(body == null)
+			return list;
+		Expression expanded = expandForm(body);
+		if(expanded == body)
+			return list;
+		return list(LAMBDA,Compiler.nth(list,1),expanded);
+	}
+
+	Expression defineSyntax(Pair list) throws Exception{
+		Expression name = Compiler.nth(list,1);
+		Expression rules = Compiler.nth(list,2);
+		if(name == null || !name.isSymbol() || rules == null || !rules.isPair() || ((Pair) rules).getCar() != SYNTAX_RULES)
+			throw new Exception("define-syntax expects a name and a syntax-rules form.");
+		sideEffects = true;
+		SyntaxRules macro = new SyntaxRules(((Pair) rules).getCdr());
+		SyntaxRules old = context.macros.put((SymbolVal) name,macro);
+		//Forms expanded before might use the new macro. Loading the same
+		//definition again changes nothing.
+		if(old == null || !ExpansionCache.same(old.spec,macro.spec)){
+			context.macrosVersion = version(context.macrosVersion,(SymbolVal) name,macro.spec);
+			context.memo.clear();
+		}
+		return new ConstantNode(null);
+	}
+
+	static long version(long from, SymbolVal name, Expression spec){
+		long h = (from ^ name.hashCode()) * 0x100000001b3L;
+		return (h ^ ExpansionCache.hash(spec)) * 0x100000001b3L;
+	}
+
+	static Pair list(Expression... items){
+		Pair list = Pair.NIL;
+		for(int i = items.length - 1; i >= 0; i--)
+			list = new Pair(items[i],list);
+		return list;
+	}
+}
+
+//One macro made by syntax-rules. Patterns are matched against the whole
+//use of the macro, ignoring its keyword, and the first that matches
+//picks the template. A pattern followed by ... matches any number of
+//forms, the template the same pattern variables are followed by ... in
+//is repeated once for each.
+class SyntaxRules{
+	static final SymbolVal ELLIPSIS = SymbolVal.intern("...");
+	static final SymbolVal UNDERSCORE = SymbolVal.intern("_");
+
+	Expression spec;
+	ArrayList<SymbolVal> literals = new ArrayList<SymbolVal>();
+	ArrayList<Expression> patterns = new ArrayList<Expression>();
+	ArrayList<Expression> templates = new ArrayList<Expression>();
+
+	//(literals (pattern template) ...)
+	SyntaxRules(Expression spec) throws Exception{
+		this.spec = spec;
+		Expression literalList = Compiler.nth(spec,0);
+		if(literalList == null || !(literalList.isPair() || literalList.isNil()))
+			throw new Exception("syntax-rules expects a list of literals as the first argument.");
+		for(Expression l = literalList; l.isPair(); l = ((Pair) l).getCdr()){
+			Expression literal = ((Pair) l).getCar();
+			if(!literal.isSymbol())
+				throw new Exception("syntax-rules literals have to be symbols.");
+			literals.add((SymbolVal) literal);
+		}
+		for(Expression r = ((Pair) spec).getCdr(); r.isPair(); r = ((Pair) r).getCdr()){
+			Expression rule = ((Pair) r).getCar();
+			Expression pattern = Compiler.nth(rule,0);
+			Expression template = Compiler.nth(rule,1);
+			if(pattern == null || !pattern.isPair() || template == null)
+				throw new Exception("syntax-rules expects rules like (pattern template).");
+			patterns.add(((Pair) pattern).getCdr());
+			templates.add(template);
+		}
+	}
+
+	Expression transcribe(Pair use) throws Exception{
+		for(int i = 0; i < patterns.size(); i++){
+			Map<SymbolVal,Object> bindings = new HashMap<SymbolVal,Object>();
+			if(match(patterns.get(i),use.getCdr(),bindings))
+				return instantiate(templates.get(i),bindings);
+		}
+		throw new Exception("No syntax-rules pattern matches ".concat(use.toString()).concat("."));
+	}
+
+	//Binds the pattern variables in pattern to the parts of form they
+	//match. A variable under an ellipsis is bound to an ArrayList with a
+	//binding for each repetition.
+	boolean match(Expression pattern, Expression form, Map<SymbolVal,Object> bindings){
+		if(pattern.isSymbol()){
+			if(literals.contains(pattern))
+				return form == pattern;
+			if(pattern != UNDERSCORE)
+				bindings.put((SymbolVal) pattern,form);
+			return true;
+		}
+		if(pattern.isNil())
+			return form.isNil();
+		if(!pattern.isPair())
+			return pattern.equals(form);
+
+		Pair p = (Pair) pattern;
+		Expression next = p.getCdr();
+		if(next.isPair() && ((Pair) next).getCar() == ELLIPSIS){
+			Expression after = ((Pair) next).getCdr();
+			int available = length(form) - length(after);
+			if(available < 0)
+				return false;
+			ArrayList<Map<SymbolVal,Object>> repetitions = new ArrayList<Map<SymbolVal,Object>>();
+			for(int i = 0; i < available; i++){
+				Map<SymbolVal,Object> repetition = new HashMap<SymbolVal,Object>();
+				if(!match(p.getCar(),((Pair) form).getCar(),repetition))
+					return false;
+				repetitions.add(repetition);
+				form = ((Pair) form).getCdr();
+			}
+			for(SymbolVal var : variables(p.getCar(),new ArrayList<SymbolVal>())){
+				ArrayList<Object> values = new ArrayList<Object>();
+				for(Map<SymbolVal,Object> repetition : repetitions)
+					values.add(repetition.get(var));
+				bindings.put(var,values);
+			}
+			return match(after,form,bindings);
+		}
+
+		if(!form.isPair())
+			return false;
+		return match(p.getCar(),((Pair) form).getCar(),bindings) && match(next,((Pair) form).getCdr(),bindings);
+	}
+
+	//Proper list elements before the tail.
+	static int length(Expression list){
+		int n = 0;
+		while(list.isPair()){
+			n++;
+			list = ((Pair) list).getCdr();
+		}
+		return n;
+	}
+
+	ArrayList<SymbolVal> variables(Expression pattern, ArrayList<SymbolVal> vars){
+		if(pattern.isSymbol()){
+			if(pattern != ELLIPSIS && pattern != UNDERSCORE && !literals.contains(pattern))
+				vars.add((SymbolVal) pattern);
+		}else if(pattern.isPair()){
+			variables(((Pair) pattern).getCar(),vars);
+			variables(((Pair) pattern).getCdr(),vars);
+		}
+		return vars;
+	}
+
+	@SuppressWarnings("unchecked")
+	Expression instantiate(Expression template, Map<SymbolVal,Object> bindings) throws Exception{
+		if(template.isSymbol()){
+			Object value = bindings.get(template);
+			if(value instanceof ArrayList)
+				throw new Exception("Pattern variable ".concat(template.toString()).concat(" is used without an ellipsis."));
+			return value != null ? (Expression) value : template;
+		}
+		if(!template.isPair())
+			return template;
+
+		Pair t = (Pair) template;
+		//(... ...) is a literal ellipsis
+		if(t.getCar() == ELLIPSIS && t.getCdr().isPair())
+			return ((Pair) t.getCdr()).getCar();
+
+		Expression next = t.getCdr();
+		if(next.isPair() && ((Pair) next).getCar() == ELLIPSIS){
+			ArrayList<SymbolVal> repeated = new ArrayList<SymbolVal>();
+			for(SymbolVal var : variables(t.getCar(),new ArrayList<SymbolVal>()))
+				if(bindings.get(var) instanceof ArrayList)
+					repeated.add(var);
+			if(repeated.isEmpty())
+				throw new Exception("Nothing to repeat for the ellipsis after ".concat(t.getCar().toString()).concat("."));
+
+			int count = ((ArrayList<Object>) bindings.get(repeated.get(0))).size();
+			ArrayList<Expression> items = new ArrayList<Expression>();
+			for(int i = 0; i < count; i++){
+				Map<SymbolVal,Object> repetition = new HashMap<SymbolVal,Object>(bindings);
+				for(SymbolVal var : repeated){
+					ArrayList<Object> values = (ArrayList<Object>) bindings.get(var);
+					if(values.size() != count)
+						throw new Exception("Pattern variables under the same ellipsis matched different numbers of forms.");
+					repetition.put(var,values.get(i));
+				}
+				items.add(instantiate(t.getCar(),repetition));
+			}
+			Expression rest = instantiate(((Pair) next).getCdr(),bindings);
+			for(int i = items.size() - 1; i >= 0; i--)
+				rest = new Pair(items.get(i),rest);
+			return rest;
+		}
+
+		return new Pair(instantiate(t.getCar(),bindings),instantiate(next,bindings));
+	}
+}
+
+//A map from forms to their expansions that compares forms by identity
+//and only holds them weakly, so forms that are thrown away don't stay in
+//it. An expansion that is the form itself is stored as UNCHANGED so the
+//value doesn't keep its own key alive.
+class ExpansionMemo{
+	static final Expression UNCHANGED = new ConstantNode(null);
+
+	final Map<Key,Expression> map = new HashMap<Key,Expression>();
+	final ReferenceQueue<Expression> queue = new ReferenceQueue<Expression>();
+
+	static class Key extends WeakReference<Expression>{
+		final int hash;
+
+		Key(Expression form, ReferenceQueue<Expression> queue){
+			super(form,queue);
+			this.hash = System.identityHashCode(form);
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+
+		public boolean equals(Object o){
+			if(o == this)
+				return true;
+			if(!(o instanceof Key))
+				return false;
+			Expression form = get();
+			return form != null && form == ((Key) o).get();
+		}
+	}
+
+	synchronized Expression get(Expression form){
+		Expression expansion = map.get(new Key(form,null));
+		return expansion == UNCHANGED ? form : expansion;
+	}
+
+	synchronized void put(Expression form, Expression expansion){
+		purge();
+		map.put(new Key(form,queue),expansion == form ? UNCHANGED : expansion);
+	}
+
+	synchronized void clear(){
+		map.clear();
+	}
+
+	synchronized int size(){
+		purge();
+		return map.size();
+	}
+
+	void purge(){
+		Object key;
+		while((key = queue.poll()) != null)
+			map.remove(key);
+	}
+}
+
+//Expansions of forms that were loaded from files or typed in before,
+//shared by every interpreter in the process so the same library loaded
+//into many of them is only expanded once. A form from a file is found by
+//the file's path, a hash of its contents and the form's position in it.
+//Typed forms are found by a hash of the form and then compared. The
+//least recently used expansions are dropped once there are more than
+//vole.expansion.cache of them.
+class ExpansionCache{
+	static final String INPUT = "<input>";
+	static final ExpansionCache shared = new ExpansionCache(Integer.getInteger("vole.expansion.cache",10000));
+
+	static class Key{
+		final String source;
+		final long hash;
+		final int position;
+
+		Key(String source, long hash, int position){
+			this.source = source;
+			this.hash = hash;
+			this.position = position;
+		}
+
+		public int hashCode(){
+			return source.hashCode() * 31 + Long.hashCode(hash) * 17 + position;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return k.hash == hash && k.position == position && k.source.equals(source);
+		}
+	}
+
+	static class Entry{
+		//the typed form, to tell forms with the same hash apart
+		final Expression form;
+		final Expression expansion;
+		final long version;
+
+		Entry(Expression form, Expression expansion, long version){
+			this.form = form;
+			this.expansion = expansion;
+			this.version = version;
+		}
+	}
+
+	final Map<Key,Entry> map;
+	//lookups since the cache was last cleared
+	int hits;
+	int misses;
+
+	ExpansionCache(final int capacity){
+		this.map = new LinkedHashMap<Key,Entry>(16,0.75f,true){
+			protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest){
+				return size() > capacity;
+			}
+		};
+	}
+
+	//The expansion if it was made with the macros of version.
+	synchronized Expression get(String source, long hash, int position, Expression form, long version){
+		Entry entry = map.get(new Key(source,hash,position));
+		if(	entry == null ||
+			entry.version != version ||
+			(form != null && !same(form,entry.form))){
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.expansion;
+	}
+
+	synchronized void put(String source, long hash, int position, Expression form, Expression expansion, long version){
+		map.put(new Key(source,hash,position),new Entry(form,expansion,version));
+	}
+
+	synchronized void clear(){
+		map.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	synchronized int size(){
+		return map.size();
+	}
+
+	//64 bit FNV-1a of the bytes from position to limit.
+	static long hash(ByteBuffer bytes){
+		long h = 0xcbf29ce484222325L;
+		for(int i = bytes.position(); i < bytes.limit(); i++){
+			h ^= bytes.get(i) & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	//A hash of what the form says, forms that are the same get the same
+	//hash. Nested lists are walked with a stack of their own, so forms
+	//of any depth can be hashed.
+	static long hash(Expression exp){
+		long h = 0xcbf29ce484222325L;
+		ArrayDeque<Expression> rest = new ArrayDeque<Expression>();
+		while(true){
+			while(exp != null && exp.isPair()){
+				h = (h ^ 1) * 0x100000001b3L;
+				Expression cdr = ((Pair) exp).getCdr();
+				if(cdr != null)
+					rest.push(cdr);
+				exp = ((Pair) exp).getCar();
+			}
+			if(exp instanceof ConstantNode){
+				h = (h ^ 2) * 0x100000001b3L;
+				exp = ((ConstantNode) exp).val;
+				continue;
+			}
+			//the empty list has no hashCode of its own that is the same
+			//in every run
+			if(exp != null)
+				h = (h ^ (exp.isNil() ? 3 : exp.hashCode())) * 0x100000001b3L;
+			if(rest.isEmpty())
+				return h;
+			exp = rest.pop();
+		}
+	}
+
+	//True if a and b are the same form. Pair.equals can't be used as
+	//it doesn't handle the empty list inside lists.
+	static boolean same(Expression a, Expression b){
+		//pairs of elements still to compare
+		ArrayDeque<Expression[]> rest = new ArrayDeque<Expression[]>();
+		while(true){
+			while(a != null && b != null && a.isPair() && b.isPair()){
+				rest.push(new Expression[]{((Pair) a).getCdr(),((Pair) b).getCdr()});
+				a = ((Pair) a).getCar();
+				b = ((Pair) b).getCar();
+			}
+			if(a instanceof ConstantNode && b instanceof ConstantNode){
+				a = ((ConstantNode) a).val;
+				b = ((ConstantNode) b).val;
+				continue;
+			}
+			if(!sameAtom(a,b))
+				return false;
+			if(rest.isEmpty())
+				return true;
+			Expression[] next = rest.pop();
+			a = next[0];
+			b = next[1];
+		}
+	}
+
+	//same for a and b that aren't both pairs or both ConstantNodes.
+	static boolean sameAtom(Expression a, Expression b){
+		if(a == b)
+			return true;
+		if(a == null || b == null || a.isPair() || b.isPair())
+			return false;
+		if(a.isNil() || b.isNil())
+			return a.isNil() && b.isNil();
+		if(a.isNode() || b.isNode())
+			return false;
+		return a.getClass() == b.getClass() && a.equals(b);
+	}
+}
@@ -0,0 +1,541 @@
+package Vole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+//Images of parsed files. An image holds the forms of a source file in a
+//compact binary form, so loading it is one read of the file into a
+//ByteBuffer and a walk over the bytes, with no lexing, number parsing or
+//macro expansion. Counts, lengths and integers are written as varints,
+//seven bits a byte with the high bit set on all but the last, so most of
+//them take a byte. load uses the image next to a source file, foo.fasl
+//for foo.scm, when it is at least as new as the source.
+//
+//The forms are written expanded with the macros there were when the
+//image was made, and the version of those macros is written first, see
+//Expander.version. A form that defines a macro is written as it was
+//read and expanded when it's loaded, so loading the image defines it
+//too. The expansions are only used while the macros are the ones they
+//were made with, from the form where that stops load goes back to the
+//source.
+//
+//Snapshots use the same encoding for a whole top level Environment and
+//everything reachable from it. Environments and lambdas are written once
+//and referred to by number after that, so closures that capture their
+//own environment don't loop. The bindings of an environment are written
+//after the value that needed it, once every frame they could refer to
+//exists. Lambda bodies are written as source and compiled again when
+//they are read. Builtins are written by name and looked up in a new
+//CoreLispLib.
+class Fasl{
+	static final int MAGIC = 0x564f4c45; //"VOLE"
+	static final int SNAPSHOT_MAGIC = 0x564f4c53; //"VOLS"
+	static final int VERSION = 2;
+
+	//what the next value is
+	static final byte NIL = 0;
+	//n elements, then the tail
+	static final byte LIST = 1;
+	//zigzag encoded so small negative numbers are small too
+	static final byte FIXNUM = 2;
+	static final byte BIGNUM = 3;
+	static final byte RATNUM = 4;
+	static final byte FLONUM = 5;
+	static final byte STRING = 6;
+	//a symbol seen for the first time, its name follows
+	static final byte SYMBOL = 7;
+	//the nth symbol of the image
+	static final byte SYMBOL_REF = 8;
+	static final byte TRUE = 9;
+	static final byte FALSE = 10;
+	//snapshots only
+	static final byte UNSPECIFIED = 11;
+	//parent, caller, the bindings come later
+	static final byte ENVIRONMENT = 12;
+	//args, rest or unspecified, source, closure
+	static final byte LAMBDA = 13;
+	static final byte BUILTIN = 14;
+	//the nth environment or lambda
+	static final byte OBJECT_REF = 15;
+	static final byte EOF = 16;
+	//a quoted value in a lambda body or an expanded form
+	static final byte CONSTANT = 17;
+	//a form of an image that is expanded when it's loaded, the form
+	//follows
+	static final byte UNEXPANDED = 18;
+
+	ByteBuffer buf;
+	//writing
+	Map<SymbolVal,Integer> symbolIndex;
+	Map<Expression,Integer> objectIndex;
+	//reading
+	ArrayList<SymbolVal> symbols;
+	ArrayList<Expression> objects;
+	ArrayList<Lambda> lambdas;
+	Environment builtins;
+	int formsLeft;
+	//the macros the forms of an image were expanded with
+	long macrosVersion;
+	//false if the last form next read has to be expanded
+	boolean expanded;
+	//environments whose bindings haven't been written or read yet
+	ArrayList<Environment> environments;
+
+	Fasl(ByteBuffer buf){
+		this.buf = buf;
+	}
+
+	//The image that goes with a source file.
+	static String imageFor(String filename){
+		if(filename.endsWith(".scm"))
+			filename = filename.substring(0,filename.length() - 4);
+		return filename.concat(".fasl");
+	}
+
+	//The image to load in place of filename, or null if there isn't an
+	//up to date one.
+	static String upToDateImage(String filename){
+		if(filename.endsWith(".fasl"))
+			return null;
+		File source = new File(filename);
+		File image = new File(imageFor(filename));
+		if(!image.isFile() || image.lastModified() < source.lastModified())
+			return null;
+		return image.getPath();
+	}
+
+	//Parses a source file and writes its forms to an image, expanded
+	//with the macros there are now. The macros the file defines are only
+	//defined for expanding it.
+	static void compileFile(String source, String image) throws Exception{
+		Context context = Context.current();
+		Context expanding = new Context();
+		expanding.macros = new HashMap<SymbolVal,SyntaxRules>(context.macros);
+		expanding.macrosVersion = context.macrosVersion;
+
+		ArrayList<Expression> forms = new ArrayList<Expression>();
+		BitSet unexpanded = new BitSet();
+		Lexer lexer = Lexer.open(source);
+		Context previous = Context.enter(expanding);
+		try{
+			Expression exp = Parser.parseSexp(lexer);
+			while(exp != null){
+				Expander expander = new Expander(null);
+				Expression expansion = expander.expandForm(exp);
+				if(expander.sideEffects)
+					unexpanded.set(forms.size());
+				forms.add(expander.sideEffects ? exp : expansion);
+				exp = Parser.parseSexp(lexer);
+			}
+		}finally{
+			Context.exit(previous);
+			lexer.close();
+		}
+		write(image,context.macrosVersion,forms,unexpanded);
+	}
+
+	static Fasl writer(int magic){
+		Fasl out = new Fasl(ByteBuffer.allocate(64 * 1024));
+		out.symbolIndex = new HashMap<SymbolVal,Integer>();
+		out.objectIndex = new IdentityHashMap<Expression,Integer>();
+		out.environments = new ArrayList<Environment>();
+		out.buf.putInt(magic);
+		out.buf.putInt(VERSION);
+		return out;
+	}
+
+	static void write(String filename, long macrosVersion, ArrayList<Expression> forms, BitSet unexpanded) throws Exception{
+		Fasl out = writer(MAGIC);
+		out.room(8);
+		out.buf.putLong(macrosVersion);
+		out.putVarint(forms.size());
+		for(int i = 0; i < forms.size(); i++){
+			if(unexpanded.get(i))
+				out.putByte(UNEXPANDED);
+			out.put(forms.get(i));
+		}
+		out.writeTo(filename);
+	}
+
+	static void writeSnapshot(String filename, Environment env) throws Exception{
+		Fasl out = writer(SNAPSHOT_MAGIC);
+		out.put(env);
+		for(int i = 0; i < out.environments.size(); i++)
+			out.putBindings(out.environments.get(i));
+		out.writeTo(filename);
+	}
+
+	void writeTo(String filename) throws Exception{
+		buf.flip();
+		FileOutputStream stream = new FileOutputStream(filename);
+		try{
+			FileChannel channel = stream.getChannel();
+			while(buf.hasRemaining())
+				channel.write(buf);
+		}finally{
+			stream.close();
+		}
+	}
+
+	//The whole file in one buffer. Images are read into the heap rather
+	//than mapped, getting bytes one at a time is a lot cheaper there.
+	static ByteBuffer readFile(String filename) throws Exception{
+		FileInputStream stream = new FileInputStream(filename);
+		try{
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+				throw new Exception("Image ".concat(filename).concat(" is too big."));
+			ByteBuffer bytes = ByteBuffer.allocate((int) size);
+			while(bytes.hasRemaining() && channel.read(bytes) >= 0);
+			bytes.flip();
+			return bytes;
+		}finally{
+			stream.close();
+		}
+	}
+
+	//A reader for the forms in an image, see next.
+	static Fasl reader(ByteBuffer bytes) throws Exception{
+		Fasl in = reader(bytes,MAGIC);
+		in.macrosVersion = in.buf.getLong();
+		in.formsLeft = (int) in.getVarint();
+		return in;
+	}
+
+	static Fasl reader(ByteBuffer bytes, int magic) throws Exception{
+		Fasl in = new Fasl(bytes);
+		in.symbols = new ArrayList<SymbolVal>();
+		in.objects = new ArrayList<Expression>();
+		in.lambdas = new ArrayList<Lambda>();
+		in.environments = new ArrayList<Environment>();
+		if(bytes.remaining() < 8 || bytes.getInt() != magic)
+			throw new Exception(magic == MAGIC ? "Not an image." : "Not a snapshot.");
+		if(bytes.getInt() != VERSION)
+			throw new Exception("Image was written by a different version of Vole.");
+		return in;
+	}
+
+	//The top level Environment in a snapshot. Lambda bodies are compiled
+	//for the current mode.
+	static Environment readSnapshot(ByteBuffer bytes) throws Exception{
+		Fasl in = reader(bytes,SNAPSHOT_MAGIC);
+		in.builtins = CoreLispLib.getEnv();
+		Expression env = in.get();
+		if(!(env instanceof Environment))
+			throw new Exception("Bad snapshot, no environment.");
+		for(int i = 0; i < in.environments.size(); i++)
+			in.getBindings(in.environments.get(i));
+		for(Lambda lambda : in.lambdas)
+			lambda.exp = compileBody(lambda.params,lambda.source,lambda.closure);
+		return (Environment) env;
+	}
+
+	//A lambda body compiled the way the current mode would have.
+	static Expression compileBody(Params params, Expression source, Environment env){
+		Scope scope = Analyzer.scopeFor(params,null);
+		Vole.Mode mode = Context.current().mode;
+		if(mode == Vole.Mode.INTERPRETED || mode == Vole.Mode.CEK)
+			return Analyzer.analyze(source,scope,env);
+		if(mode == Vole.Mode.BYTECODE)
+			return BytecodeCompiler.compileBody(source,scope,env);
+		Node body = Compiler.compile(source,scope,env,true);
+		if(mode == Vole.Mode.TIERED)
+			body = new TierNode(body);
+		return body;
+	}
+
+	//The next form, or null after the last one, same as Parser.parseSexp.
+	//expanded says if it has been expanded.
+	Expression next() throws Exception{
+		if(formsLeft == 0)
+			return null;
+		formsLeft--;
+		expanded = buf.get(buf.position()) != UNEXPANDED;
+		if(!expanded)
+			buf.get();
+		return get();
+	}
+
+	void room(int n){
+		if(buf.remaining() < n){
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2,buf.position() + n));
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+	}
+
+	void putByte(byte b){
+		room(1);
+		buf.put(b);
+	}
+
+	void putVarint(long n){
+		room(10);
+		while((n & ~0x7fL) != 0){
+			buf.put((byte) ((n & 0x7f) | 0x80));
+			n >>>= 7;
+		}
+		buf.put((byte) n);
+	}
+
+	void putBytes(byte[] bytes){
+		putVarint(bytes.length);
+		room(bytes.length);
+		buf.put(bytes);
+	}
+
+	void putString(String s){
+		putBytes(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void putSymbol(SymbolVal sym){
+		Integer index = symbolIndex.get(sym);
+		if(index != null){
+			putByte(SYMBOL_REF);
+			putVarint(index);
+		}else{
+			symbolIndex.put(sym,symbolIndex.size());
+			putByte(SYMBOL);
+			putString(sym.getIdentifier());
+		}
+	}
+
+	//True if exp was written before, in which case a reference to it
+	//has been written instead.
+	boolean putReference(Expression exp){
+		Integer index = objectIndex.get(exp);
+		if(index != null){
+			putByte(OBJECT_REF);
+			putVarint(index);
+			return true;
+		}
+		objectIndex.put(exp,objectIndex.size());
+		return false;
+	}
+
+	void putBindings(Environment env) throws Exception{
+		putVarint(env.frameSize());
+		for(int i = 0; i < env.size; i++){
+			putSymbol(env.names[i]);
+			put(env.values[i]);
+		}
+		if(env.map != null){
+			for(Map.Entry<SymbolVal,Expression> entry : env.map.entrySet()){
+				putSymbol(entry.getKey());
+				put(entry.getValue());
+			}
+		}
+	}
+
+	void put(Expression exp) throws Exception{
+		if(exp == null){
+			putByte(UNSPECIFIED);
+		}else if(exp.isNil()){
+			putByte(NIL);
+		}else if(exp.isPair()){
+			int count = 0;
+			Expression rest = exp;
+			while(rest.isPair()){
+				count++;
+				rest = ((Pair) rest).getCdr();
+			}
+			putByte(LIST);
+			putVarint(count);
+			rest = exp;
+			for(int i = 0; i < count; i++){
+				put(((Pair) rest).getCar());
+				rest = ((Pair) rest).getCdr();
+			}
+			put(rest);
+		}else if(exp instanceof FixnumVal){
+			long val = ((FixnumVal) exp).val;
+			putByte(FIXNUM);
+			putVarint((val << 1) ^ (val >> 63));
+		}else if(exp instanceof BignumVal){
+			putByte(BIGNUM);
+			putBytes(((BignumVal) exp).val.toByteArray());
+		}else if(exp instanceof RatnumVal){
+			putByte(RATNUM);
+			putBytes(((RatnumVal) exp).num.toByteArray());
+			putBytes(((RatnumVal) exp).den.toByteArray());
+		}else if(exp instanceof FlonumVal){
+			putByte(FLONUM);
+			room(8);
+			buf.putDouble(((FlonumVal) exp).val);
+		}else if(exp.isString()){
+			putByte(STRING);
+			putString(((StringVal) exp).getVal());
+		}else if(exp.isSymbol()){
+			putSymbol((SymbolVal) exp);
+		}else if(exp == BooleanVal.TRUE){
+			putByte(TRUE);
+		}else if(exp == BooleanVal.FALSE){
+			putByte(FALSE);
+		}else if(exp == EofVal.EOF){
+			putByte(EOF);
+		}else if(exp instanceof Environment){
+			if(putReference(exp))
+				return;
+			Environment env = (Environment) exp;
+			putByte(ENVIRONMENT);
+			put(env.parent);
+			put(env.caller);
+			environments.add(env);
+		}else if(exp.isLambda()){
+			if(putReference(exp))
+				return;
+			Lambda lambda = (Lambda) exp;
+			putByte(LAMBDA);
+			putVarint(lambda.params.args.length);
+			for(SymbolVal arg : lambda.params.args)
+				putSymbol(arg);
+			put(lambda.params.rest);
+			put(lambda.source);
+			put(lambda.closure);
+		}else if(exp instanceof ConstantNode){
+			putByte(CONSTANT);
+			put(((ConstantNode) exp).val);
+		}else if(exp.isJavaFunction() && ((JavaFunction) exp).name != null){
+			putByte(BUILTIN);
+			putString(((JavaFunction) exp).name);
+		}else{
+			throw new Exception("Can't write ".concat(exp.toString()).concat(" to an image."));
+		}
+	}
+
+	long getVarint(){
+		long n = 0;
+		int shift = 0;
+		byte b = buf.get();
+		while(b < 0){
+			n |= (long) (b & 0x7f) << shift;
+			shift += 7;
+			b = buf.get();
+		}
+		return n | (long) b << shift;
+	}
+
+	byte[] getBytes(){
+		byte[] bytes = new byte[(int) getVarint()];
+		buf.get(bytes);
+		return bytes;
+	}
+
+	String getString(){
+		int length = (int) getVarint();
+		String s = new String(buf.array(),buf.arrayOffset() + buf.position(),length,StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	void getBindings(Environment env) throws Exception{
+		long count = getVarint();
+		for(long i = 0; i < count; i++){
+			SymbolVal name = (SymbolVal) get();
+			env.add(name,get());
+		}
+	}
+
+	Expression get() throws Exception{
+		byte tag = buf.get();
+		switch(tag){
+			case NIL:
+				return Pair.NIL;
+			case LIST:{
+				int count = (int) getVarint();
+				Pair head = null;
+				Pair tail = null;
+				for(int i = 0; i < count; i++){
+					Pair newTail = new Pair(get(),null);
+					if(head == null)
+						head = newTail;
+					else
+						tail.setCdr(newTail);
+					tail = newTail;
+				}
+				tail.setCdr(get());
+				return head;
+			}
+			case FIXNUM:{
+				long n = getVarint();
+				return NumberVal.valueOf((n >>> 1) ^ -(n & 1));
+			}
+			case BIGNUM:
+				return NumberVal.valueOf(new BigInteger(getBytes()));
+			case RATNUM:{
+				BigInteger num = new BigInteger(getBytes());
+				return NumberVal.valueOf(num,new BigInteger(getBytes()));
+			}
+			case FLONUM:
+				return NumberVal.valueOf(buf.getDouble());
+			case STRING:
+				return new StringVal(getString());
+			case SYMBOL:{
+				SymbolVal sym = SymbolVal.intern(getString());
+				symbols.add(sym);
+				return sym;
+			}
+			case SYMBOL_REF:
+				return symbols.get((int) getVarint());
+			case TRUE:
+				return BooleanVal.TRUE;
+			case FALSE:
+				return BooleanVal.FALSE;
+			case UNSPECIFIED:
+				return null;
+			case EOF:
+				return EofVal.EOF;
+			case CONSTANT:
+				return new ConstantNode(get());
+			case OBJECT_REF:
+				return objects.get((int) getVarint());
+			case ENVIRONMENT:{
+				//Parents and callers are always made before the frames
+				//that point at them, so neither can refer back to this.
+				int index = objects.size();
+				objects.add(null);
+				Environment parent = (Environment) get();
+				Environment caller = (Environment) get();
+				Environment env = new Environment(parent,caller);
+				objects.set(index,env);
+				environments.add(env);
+				return env;
+			}
+			case LAMBDA:{
+				Lambda lambda = new Lambda(null,Params.NONE,null,null);
+				objects.add(lambda);
+				SymbolVal[] args = new SymbolVal[(int) getVarint()];
+				for(int i = 0; i < args.length; i++)
+					args[i] = (SymbolVal) get();
+				lambda.params = new Params(args,(SymbolVal) get());
+				lambda.source = get();
+				lambda.closure = (Environment) get();
+				if(lambda.closure != null)
+					for(SymbolVal name : lambda.params.slots)
+						lambda.closure.addLocalName(name);
+				lambdas.add(lambda);
+				return lambda;
+			}
+			case BUILTIN:{
+				String name = getString();
+				Expression builtin = builtins == null ? null : builtins.lookUpFrame(SymbolVal.intern(name));
+				if(builtin == null)
+					throw new Exception("Snapshot refers to a builtin ".concat(name).concat(" that doesn't exist."));
+				return builtin;
+			}
+		}
+		throw new Exception("Bad image, unknown tag ".concat(Integer.toString(tag)).concat("."));
+	}
+}
@@ -0,0 +1,424 @@
+package Vole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+//A lambda body compiled to a JVM class. The generated class extends
+//this and implements run() with the body's code.
+abstract class CompiledBody{
+	Expression[] constants;
+
+	CompiledBody(){}
+
+	abstract Expression run(Environment env) throws Exception;
+}
+
+//Wraps the Node tree of a lambda body in TIERED mode. The tree is run
+//as is until the body has been entered JIT_THRESHOLD times, then it is
+//compiled to a hidden class that HotSpot can optimize as one method.
+class TierNode extends Node{
+	static int JIT_THRESHOLD = Integer.getInteger("vole.jit.threshold",1000);
+
+	Node node;
+	volatile CompiledBody compiled;
+	int count;
+	boolean failed;
+
+	TierNode(Node node){
+		this.node = node;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		CompiledBody c = compiled;
+		if(c != null)
+			return c.run(env);
+
+		if(!failed && ++count >= JIT_THRESHOLD){
+			try{
+				compiled = JitCompiler.compile(node);
+			}catch(Throwable t){
+				//Stay on the node tree if the body can't be compiled.
+				failed = true;
+			}
+		}
+		return node.execute(env);
+	}
+
+	public String toString(){
+		return node.toString();
+	}
+}
+
+//Runtime helpers the generated code calls. They do what the matching
+//Nodes do.
+class JitSupport{
+
+	JitSupport(){}
+
+	static Expression force(Expression exp) throws Exception{
+		return exp != null && exp.isThunk() ? Evaluator.trampoline(exp) : exp;
+	}
+
+	static boolean isTrue(Expression exp){
+		return exp == BooleanVal.TRUE;
+	}
+
+	static Expression call1(Expression fn, Expression arg, Environment env, boolean tail) throws Exception{
+		if(fn != null && fn.isLambda()){
+			//moved into args so that only bindAll holds it, see CallNode
+			Expression[] args = {arg};
+			arg = null;
+			return call(fn,args,env,tail);
+		}
+		return callJava(fn,new Pair(arg,Pair.NIL),env,tail);
+	}
+
+	//Arithmetic and comparisons go straight to the builtin.
+	static Expression call2(Expression fn, Expression a, Expression b, Environment env, boolean tail) throws Exception{
+		if(fn instanceof BinaryFunction && !Context.debugging())
+			return ((BinaryFunction) fn).call(a,b);
+		Expression[] args = {a,b};
+		a = null;
+		b = null;
+		return call(fn,args,env,tail);
+	}
+
+	//Like CallNode, a Thunk only for a call in tail position.
+	static Expression call(Expression fn, Expression[] args, Environment env, boolean tail) throws Exception{
+		if(fn != null && fn.isLambda() && ((Lambda) fn).getParams().takes(args.length)){
+			Lambda lambda = (Lambda) fn;
+			if(tail)
+				return new Thunk(lambda.getExp(),lambda.getEvalEnvironment(args,0,args.length,env));
+			return Evaluator.callBody(lambda.getExp(),lambda.bindAll(args,env));
+		}
+		Pair argList = Pair.NIL;
+		for(int i = args.length - 1; i >= 0; i--)
+			argList = new Pair(args[i],argList);
+		return callJava(fn,argList,env,tail);
+	}
+
+	static Expression callJava(Expression fn, Pair args, Environment env, boolean tail) throws Exception{
+		Expression result;
+		if(fn != null && fn.isJavaFunction() && fn != Machine.CALL_CC && !Context.debugging())
+			result = ((JavaFunction) fn).call(args);
+		else
+			result = Evaluator.apply_tramp(fn,args,env);
+		return tail ? result : Evaluator.trampoline(result);
+	}
+}
+
+//Just enough of a class file writer for JitCompiler. Classes are
+//written as version 49 so no stack map frames are needed.
+class ClassWriter{
+	ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	DataOutputStream poolOut = new DataOutputStream(pool);
+	Map<String,Integer> entries = new HashMap<String,Integer>();
+	int poolCount = 1;
+
+	ClassWriter(){}
+
+	int utf8(String s) throws Exception{
+		String key = "U".concat(s);
+		Integer index = entries.get(key);
+		if(index != null)
+			return index;
+		poolOut.writeByte(1);
+		poolOut.writeUTF(s);
+		entries.put(key,poolCount);
+		return poolCount++;
+	}
+
+	int classRef(String name) throws Exception{
+		String key = "C".concat(name);
+		Integer index = entries.get(key);
+		if(index != null)
+			return index;
+		int nameIndex = utf8(name);
+		poolOut.writeByte(7);
+		poolOut.writeShort(nameIndex);
+		entries.put(key,poolCount);
+		return poolCount++;
+	}
+
+	int member(int tag, String owner, String name, String desc) throws Exception{
+		String key = Integer.toString(tag).concat(owner).concat(".").concat(name).concat(desc);
+		Integer index = entries.get(key);
+		if(index != null)
+			return index;
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int descIndex = utf8(desc);
+		poolOut.writeByte(12);
+		poolOut.writeShort(nameIndex);
+		poolOut.writeShort(descIndex);
+		int nameAndType = poolCount++;
+		poolOut.writeByte(tag);
+		poolOut.writeShort(ownerIndex);
+		poolOut.writeShort(nameAndType);
+		entries.put(key,poolCount);
+		return poolCount++;
+	}
+
+	int fieldRef(String owner, String name, String desc) throws Exception{
+		return member(9,owner,name,desc);
+	}
+
+	int methodRef(String owner, String name, String desc) throws Exception{
+		return member(10,owner,name,desc);
+	}
+
+	byte[] toBytes(String name, String superName, MethodWriter[] methods) throws Exception{
+		int thisIndex = classRef(name);
+		int superIndex = classRef(superName);
+		int codeIndex = utf8("Code");
+		int[] nameIndexes = new int[methods.length];
+		int[] descIndexes = new int[methods.length];
+		for(int i = 0; i < methods.length; i++){
+			nameIndexes[i] = utf8(methods[i].name);
+			descIndexes[i] = utf8(methods[i].desc);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(poolCount);
+		out.write(pool.toByteArray());
+		//ACC_FINAL | ACC_SUPER
+		out.writeShort(0x0030);
+		out.writeShort(thisIndex);
+		out.writeShort(superIndex);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(methods.length);
+		for(int i = 0; i < methods.length; i++){
+			MethodWriter m = methods[i];
+			byte[] code = m.code.toByteArray();
+			out.writeShort(m.access);
+			out.writeShort(nameIndexes[i]);
+			out.writeShort(descIndexes[i]);
+			out.writeShort(1);
+			out.writeShort(codeIndex);
+			out.writeInt(12 + code.length);
+			out.writeShort(m.maxStack);
+			out.writeShort(m.maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+		out.writeShort(0);
+		return bytes.toByteArray();
+	}
+}
+
+//Collects the bytecode of one method and tracks its stack depth.
+class MethodWriter{
+	static final int ICONST_0 = 0x03;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int ALOAD_0 = 0x2a;
+	static final int ALOAD_1 = 0x2b;
+	static final int ALOAD_2 = 0x2c;
+	static final int AALOAD = 0x32;
+	static final int ASTORE_2 = 0x4d;
+	static final int AASTORE = 0x53;
+	static final int DUP = 0x59;
+	static final int IFEQ = 0x99;
+	static final int GOTO = 0xa7;
+	static final int ARETURN = 0xb0;
+	static final int RETURN = 0xb1;
+	static final int GETFIELD = 0xb4;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESPECIAL = 0xb7;
+	static final int INVOKESTATIC = 0xb8;
+	static final int ANEWARRAY = 0xbd;
+	static final int CHECKCAST = 0xc0;
+
+	int access;
+	String name;
+	String desc;
+	ByteArrayOutputStream code = new ByteArrayOutputStream();
+	int stack;
+	int maxStack;
+	int maxLocals;
+
+	MethodWriter(int access, String name, String desc, int maxLocals){
+		this.access = access;
+		this.name = name;
+		this.desc = desc;
+		this.maxLocals = maxLocals;
+	}
+
+	void adjust(int n){
+		stack += n;
+		maxStack = Math.max(maxStack,stack);
+	}
+
+	void op(int op, int stackChange){
+		code.write(op);
+		adjust(stackChange);
+	}
+
+	void op(int op, int operand, int stackChange){
+		code.write(op);
+		code.write(operand >> 8);
+		code.write(operand);
+		adjust(stackChange);
+	}
+
+	void pushInt(int n){
+		if(n >= 0 && n <= 5){
+			op(ICONST_0 + n,1);
+		}else if(n < 128){
+			code.write(BIPUSH);
+			code.write(n);
+			adjust(1);
+		}else{
+			op(SIPUSH,n,1);
+		}
+	}
+
+	int position(){
+		return code.size();
+	}
+
+	//Emits a branch with a blank offset and returns where it starts.
+	int branch(int op, int stackChange){
+		int at = position();
+		op(op,0,stackChange);
+		return at;
+	}
+
+	void patch(int at){
+		byte[] bytes = code.toByteArray();
+		int offset = position() - at;
+		bytes[at + 1] = (byte) (offset >> 8);
+		bytes[at + 2] = (byte) offset;
+		code.reset();
+		code.write(bytes,0,bytes.length);
+	}
+}
+
+//Translates the Node tree of a lambda body into a CompiledBody class.
+//Ifs become real branches and calls go straight to JitSupport, with
+//their arguments on the JVM stack when there are one or two. Every
+//other node is kept as a constant and executed from the generated
+//code. Nested lambdas keep their own TierNodes.
+class JitCompiler{
+	static final String EXPRESSION = "LVole/Expression;";
+	static final String ENVIRONMENT = "LVole/Environment;";
+	static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	ClassWriter writer = new ClassWriter();
+	MethodWriter run;
+	ArrayList<Expression> constants = new ArrayList<Expression>();
+
+	JitCompiler(){}
+
+	static CompiledBody compile(Node node) throws Throwable{
+		JitCompiler compiler = new JitCompiler();
+		byte[] bytes = compiler.generate(node);
+		MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes,true);
+		CompiledBody body = (CompiledBody) hidden.findConstructor(hidden.lookupClass(),MethodType.methodType(void.class)).invoke();
+		body.constants = compiler.constants.toArray(new Expression[compiler.constants.size()]);
+		return body;
+	}
+
+	byte[] generate(Node node) throws Exception{
+		MethodWriter init = new MethodWriter(0,"<init>","()V",1);
+		init.op(MethodWriter.ALOAD_0,1);
+		init.op(MethodWriter.INVOKESPECIAL,writer.methodRef("Vole/CompiledBody","<init>","()V"),-1);
+		init.op(MethodWriter.RETURN,0);
+
+		//locals: this, env, constants
+		run = new MethodWriter(0,"run","(".concat(ENVIRONMENT).concat(")").concat(EXPRESSION),3);
+		run.op(MethodWriter.ALOAD_0,1);
+		run.op(MethodWriter.GETFIELD,writer.fieldRef("Vole/CompiledBody","constants","[".concat(EXPRESSION)),0);
+		run.op(MethodWriter.ASTORE_2,-1);
+		gen(node);
+		run.op(MethodWriter.ARETURN,-1);
+
+		return writer.toBytes("Vole/JitBody","Vole/CompiledBody",new MethodWriter[]{init,run});
+	}
+
+	void constant(Expression exp, String type) throws Exception{
+		constants.add(exp);
+		run.op(MethodWriter.ALOAD_2,1);
+		run.pushInt(constants.size() - 1);
+		run.op(MethodWriter.AALOAD,-1);
+		run.op(MethodWriter.CHECKCAST,writer.classRef(type),0);
+	}
+
+	void invokeStatic(String name, String desc, int stackChange) throws Exception{
+		run.op(MethodWriter.INVOKESTATIC,writer.methodRef("Vole/JitSupport",name,desc),stackChange);
+	}
+
+	void gen(Node node) throws Exception{
+		if(node instanceof ConstantNode){
+			constant(((ConstantNode) node).val,"Vole/Expression");
+		}else if(node instanceof IfNode){
+			genIf((IfNode) node);
+		}else if(node instanceof CallNode){
+			genCall((CallNode) node);
+		}else{
+			//Anything else runs the node itself.
+			constant(node,"Vole/Node");
+			run.op(MethodWriter.ALOAD_1,1);
+			run.op(MethodWriter.INVOKEVIRTUAL,writer.methodRef("Vole/Node","execute","(".concat(ENVIRONMENT).concat(")").concat(EXPRESSION)),-1);
+		}
+	}
+
+	void genForced(Node node) throws Exception{
+		gen(node);
+		invokeStatic("force","(".concat(EXPRESSION).concat(")").concat(EXPRESSION),0);
+	}
+
+	void genIf(IfNode node) throws Exception{
+		genForced(node.test);
+		invokeStatic("isTrue","(".concat(EXPRESSION).concat(")Z"),0);
+		int toElse = run.branch(MethodWriter.IFEQ,-1);
+		gen(node.consequent);
+		int toEnd = run.branch(MethodWriter.GOTO,0);
+		run.adjust(-1);
+		run.patch(toElse);
+		gen(node.alternative);
+		run.patch(toEnd);
+	}
+
+	void genCall(CallNode node) throws Exception{
+		genForced(node.fn);
+		if(node.args.length == 1){
+			genForced(node.args[0]);
+			run.op(MethodWriter.ALOAD_1,1);
+			run.pushInt(node.tail ? 1 : 0);
+			invokeStatic("call1","(".concat(EXPRESSION).concat(EXPRESSION).concat(ENVIRONMENT).concat("Z)").concat(EXPRESSION),-3);
+			return;
+		}
+		if(node.args.length == 2){
+			genForced(node.args[0]);
+			genForced(node.args[1]);
+			run.op(MethodWriter.ALOAD_1,1);
+			run.pushInt(node.tail ? 1 : 0);
+			invokeStatic("call2","(".concat(EXPRESSION).concat(EXPRESSION).concat(EXPRESSION).concat(ENVIRONMENT).concat("Z)").concat(EXPRESSION),-4);
+			return;
+		}
+		run.pushInt(node.args.length);
+		run.op(MethodWriter.ANEWARRAY,writer.classRef("Vole/Expression"),0);
+		for(int i = 0; i < node.args.length; i++){
+			run.op(MethodWriter.DUP,1);
+			run.pushInt(i);
+			genForced(node.args[i]);
+			run.op(MethodWriter.AASTORE,-3);
+		}
+		run.op(MethodWriter.ALOAD_1,1);
+		run.pushInt(node.tail ? 1 : 0);
+		invokeStatic("call","(".concat(EXPRESSION).concat("[").concat(EXPRESSION).concat(ENVIRONMENT).concat("Z)").concat(EXPRESSION),-3);
+	}
+}
@@ -0,0 +1,48 @@
+package Vole;
+
+//A list that is parsed as it is walked. Each LazyPair holds one element
+//and the Lexer the rest of the list comes from. The next element is
+//parsed the first time the cdr is asked for, after that it's an ordinary
+//Pair. Elements are read in order, so nothing else may read from the
+//Lexer until the list has been walked to its end.
+class LazyPair extends Pair{
+	Lexer lexer;
+
+	LazyPair(Expression car, Lexer lexer){
+		super(car,null);
+		this.lexer = lexer;
+	}
+
+	Expression getCdr(){
+		if(lexer != null)
+			force();
+		return cdr;
+	}
+
+	void setCdr(Expression exp){
+		lexer = null;
+		cdr = exp;
+	}
+
+	synchronized void force(){
+		if(lexer == null)
+			return;
+		try{
+			cdr = read(lexer);
+		}catch(Exception e){
+			throw new RuntimeException(e.getMessage(),e);
+		}
+		lexer = null;
+	}
+
+	//The rest of a list whose '(' and earlier elements have been read.
+	static Pair read(Lexer lexer) throws Exception{
+		int token = lexer.next();
+		if(token == Lexer.CLOSE)
+			return Pair.NIL;
+		if(token == Lexer.EOF)
+			throw new Exception("Unexpected EOF.");
+		Expression car = token == Lexer.OPEN ? Parser.parseList(lexer) : lexer.value;
+		return new LazyPair(car,lexer);
+	}
+}
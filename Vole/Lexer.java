@@ -0,0 +1,318 @@
+package Vole;
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Splits input into tokens. Characters are read from the Reader, or
+//decoded from the bytes of a mapped file, in large blocks into a char
+//array and scanned there, nothing is peeked or reset one character at a
+//time. Characters after the last token asked for stay in the buffer, so
+//one Lexer has to be used for all the tokens of an input.
+class Lexer{
+	//token classes
+	static final int EOF = 0;
+	static final int OPEN = 1;
+	static final int CLOSE = 2;
+	static final int NUMBER = 3;
+	static final int STRING = 4;
+	static final int SYMBOL = 5;
+	static final int BOOLEAN = 6;
+
+	//what a character can be in the middle of a token
+	static final byte OTHER = 0;
+	static final byte SPACE = 1;
+	static final byte DELIMITER = 2;
+	static final byte DIGIT = 3;
+	static final byte[] classes = new byte[128];
+	static{
+		for(int c = 0; c < 128; c++){
+			if(Character.isWhitespace(c))
+				classes[c] = SPACE;
+			else if(Character.isDigit(c))
+				classes[c] = DIGIT;
+		}
+		classes['('] = DELIMITER;
+		classes[')'] = DELIMITER;
+		classes['#'] = DELIMITER;
+		classes[';'] = DELIMITER;
+	}
+
+	static final int BLOCK = 8192;
+	static final int SYMBOL_CACHE = 256;
+
+	Reader in;
+	ByteBuffer bytes;
+	byte[] scratch;
+	CharsetDecoder decoder;
+	char[] buf;
+	int pos;
+	int limit;
+	//where the token being scanned starts, kept when the buffer is refilled
+	int start;
+
+	//the value of the last NUMBER, STRING, SYMBOL or BOOLEAN token
+	Expression value;
+
+	//Symbols seen recently, by hash. A symbol found here is reused
+	//without making a String for its name.
+	SymbolVal[] symbols = new SymbolVal[SYMBOL_CACHE];
+
+	Lexer(Reader in){
+		this.in = in;
+		this.buf = new char[BLOCK];
+	}
+
+	//Tokens from chars[offset] to chars[offset + length] with no Reader
+	//behind them. The array is used as the buffer, not copied.
+	Lexer(char[] chars, int offset, int length){
+		this.buf = chars;
+		this.pos = offset;
+		this.start = offset;
+		this.limit = offset + length;
+	}
+
+	Lexer(String text){
+		this(text.toCharArray(),0,text.length());
+	}
+
+	//Tokens from UTF-8 bytes, decoded a block at a time straight into the
+	//char buffer.
+	Lexer(ByteBuffer bytes){
+		this.bytes = bytes;
+		this.decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.scratch = new byte[BLOCK];
+		this.buf = new char[BLOCK];
+	}
+
+	//A Lexer for a file. The file is mapped into memory and closed right
+	//away, the mapping stays valid until it is garbage collected. Files
+	//too big to map in one piece are read through a Reader.
+	static Lexer open(String filename) throws Exception{
+		FileInputStream stream = new FileInputStream(filename);
+		FileChannel channel = stream.getChannel();
+		long size = channel.size();
+		if(size > Integer.MAX_VALUE)
+			return new Lexer(new InputStreamReader(stream,StandardCharsets.UTF_8));
+		try{
+			return new Lexer(channel.map(FileChannel.MapMode.READ_ONLY,0,size));
+		}finally{
+			stream.close();
+		}
+	}
+
+	void close() throws Exception{
+		if(in != null)
+			in.close();
+		bytes = null;
+	}
+
+	static byte classOf(int c){
+		if(c < 128)
+			return classes[c];
+		return Character.isWhitespace(c) ? SPACE : OTHER;
+	}
+
+	//Reads another block, keeping the current token. False at the end of
+	//the input.
+	boolean fill() throws Exception{
+		if(in == null && bytes == null)
+			return false;
+		if(start > 0){
+			System.arraycopy(buf,start,buf,0,limit - start);
+			pos -= start;
+			limit -= start;
+			start = 0;
+		}
+		if(buf.length - limit < 2)
+			buf = Arrays.copyOf(buf,buf.length * 2);
+		int n = bytes != null ? decode() : in.read(buf,limit,buf.length - limit);
+		if(n <= 0)
+			return false;
+		limit += n;
+		return true;
+	}
+
+	//Decodes into the free end of the buffer and returns how many chars
+	//were added. Runs of ASCII are copied byte by byte, the decoder is
+	//only used for runs of multi-byte characters.
+	int decode(){
+		int room = buf.length - limit;
+		int start = bytes.position();
+		int count = Math.min(Math.min(room,scratch.length),bytes.remaining());
+		bytes.get(scratch,0,count);
+		int n = 0;
+		while(n < count && scratch[n] >= 0){
+			buf[limit + n] = (char) scratch[n];
+			n++;
+		}
+		bytes.position(start + n);
+		if(n == 0 && bytes.hasRemaining()){
+			CharBuffer out = CharBuffer.wrap(buf,limit,room);
+			decoder.decode(bytes,out,true);
+			n = out.position() - limit;
+		}
+		return n;
+	}
+
+	//The next character without taking it, or -1 at the end of input.
+	int peek() throws Exception{
+		if(pos == limit && !fill())
+			return -1;
+		return buf[pos];
+	}
+
+	String text(){
+		return new String(buf,start,pos - start);
+	}
+
+	int next() throws Exception{
+		while(true){
+			start = pos;
+			int c = peek();
+			if(c == -1)
+				return EOF;
+			if(c == ';'){
+				while(c != '\n' && c != -1){
+					pos++;
+					start = pos;
+					c = peek();
+				}
+				continue;
+			}
+			if(classOf(c) == SPACE){
+				pos++;
+				continue;
+			}
+
+			start = pos;
+			if(c == '('){
+				pos++;
+				return OPEN;
+			}
+			if(c == ')'){
+				pos++;
+				return CLOSE;
+			}
+			if(c == '#')
+				return scanBoolean();
+			if(c == '"')
+				return scanString();
+			if(classOf(c) == DIGIT)
+				return scanNumber();
+			return scanSymbol();
+		}
+	}
+
+	int scanBoolean() throws Exception{
+		pos++;
+		int c = peek();
+		if(c != -1)
+			pos++;
+		if(c == 't')
+			value = BooleanVal.TRUE;
+		else if(c == 'f')
+			value = BooleanVal.FALSE;
+		else
+			throw new Exception("Attempted to parse boolean but no boolean to be found.");
+		return BOOLEAN;
+	}
+
+	int scanString() throws Exception{
+		pos++;
+		start = pos;
+		int c = peek();
+		while(c != '"' && c != -1){
+			pos++;
+			c = peek();
+		}
+		value = new StringVal(text());
+		if(c != -1)
+			pos++;
+		return STRING;
+	}
+
+	//Plain integers short enough for a long are worked out while they are
+	//scanned, anything else is left to NumberVal.parse.
+	int scanNumber() throws Exception{
+		long n = 0;
+		int digits = 0;
+		boolean plain = true;
+		int c = peek();
+		while(true){
+			if(c >= '0' && c <= '9'){
+				n = n * 10 + (c - '0');
+				digits++;
+			}else if(c == '.' || c == '/' || c == 'e' || c == 'E'){
+				plain = false;
+			}else if((c == '-' || c == '+') && (buf[pos - 1] == 'e' || buf[pos - 1] == 'E')){
+				plain = false;
+			}else{
+				break;
+			}
+			pos++;
+			c = peek();
+		}
+
+		if(plain && digits < 19){
+			value = NumberVal.valueOf(n);
+			return NUMBER;
+		}
+		String text = text();
+		NumberVal number = NumberVal.parse(text);
+		if(number == null)
+			throw new Exception("Malformed number ".concat(text).concat("."));
+		value = number;
+		return NUMBER;
+	}
+
+	//Numbers like -1 or .5 start out looking like symbols.
+	int scanSymbol() throws Exception{
+		int c = peek();
+		while(c != -1 && classOf(c) != SPACE && classOf(c) != DELIMITER){
+			pos++;
+			c = peek();
+		}
+		char first = buf[start];
+		if(first == '-' || first == '+' || first == '.'){
+			NumberVal number = NumberVal.parse(text());
+			if(number != null){
+				value = number;
+				return NUMBER;
+			}
+		}
+		value = symbol();
+		return SYMBOL;
+	}
+
+	//The symbol for the token, from the cache if its name was seen lately.
+	SymbolVal symbol(){
+		int length = pos - start;
+		int hash = 0;
+		for(int i = start; i < pos; i++)
+			hash = 31 * hash + buf[i];
+
+		int slot = (hash ^ (hash >>> 16)) & (SYMBOL_CACHE - 1);
+		SymbolVal sym = symbols[slot];
+		if(sym != null && sym.hash == hash && sym.identifier.length() == length){
+			String name = sym.identifier;
+			int i = 0;
+			while(i < length && name.charAt(i) == buf[start + i])
+				i++;
+			if(i == length)
+				return sym;
+		}
+		sym = SymbolVal.intern(text());
+		symbols[slot] = sym;
+		return sym;
+	}
+}
@@ -0,0 +1,287 @@
+package Vole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+//Loads several files at once. Parsing doesn't touch any environment, so
+//every file is parsed on the common ForkJoinPool, big files in chunks
+//that start and end between top level forms. The forms are still
+//evaluated one at a time in the order they are in the files, a file as
+//soon as it has been parsed while the files after it are being parsed.
+class Loader{
+	//about how many chars of a file one task parses
+	static final int CHUNK = 64 * 1024;
+
+	Loader(){}
+
+	//The filenames in a (load-all "a" "b" ...) form's arguments, or null
+	//if any of them isn't a string.
+	static String[] filenames(Expression args){
+		ArrayList<String> names = new ArrayList<String>();
+		while(args.isPair()){
+			Expression name = ((Pair) args).getCar();
+			if(!name.isString())
+				return null;
+			names.add(((StringVal) name).getVal());
+			args = ((Pair) args).getCdr();
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	static void loadAll(String[] filenames, Environment env) throws Exception{
+		//With one processor the parsed forms would only pile up waiting
+		//for the evaluator.
+		if(Runtime.getRuntime().availableProcessors() < 2){
+			for(String filename : filenames)
+				Evaluator.load(filename,env);
+			return;
+		}
+
+		ArrayList<ParseFile> files = new ArrayList<ParseFile>();
+		for(String filename : filenames){
+			ParseFile file = new ParseFile(filename);
+			ForkJoinPool.commonPool().submit(file);
+			files.add(file);
+		}
+
+		for(ParseFile file : files){
+			try{
+				ParseChunk[] tasks = file.join();
+				if(file.image != null){
+					Evaluator.load(file.filename,file.image,env);
+					continue;
+				}
+				//positions run on across chunks, as they do for load
+				int position = 0;
+				for(ParseChunk task : tasks){
+					Chunk chunk = task.join();
+					for(Expression exp : chunk.forms){
+						if(file.keep)
+							exp = Expander.expandLoaded(exp,file.source,file.hash,position++);
+						else
+							exp = new Expander(null).expandForm(exp);
+						Evaluator.eval(exp,env);
+					}
+					//Forms before a syntax error are evaluated, as with load.
+					if(chunk.error != null)
+						throw chunk.error;
+				}
+			}catch(RuntimeException e){
+				throw unwrap(e);
+			}
+		}
+	}
+
+	static Exception unwrap(RuntimeException e){
+		Throwable cause = e;
+		while(cause instanceof RuntimeException && cause.getCause() != null)
+			cause = cause.getCause();
+		return cause instanceof Exception ? (Exception) cause : e;
+	}
+
+	//Where chars[offset] to chars[offset + length] can be cut into pieces
+	//of about CHUNK chars without cutting a form. The cuts go right after
+	//the ')' of a top level list, which the Lexer always reads as a token
+	//of its own unless it's in a string or comment, so this follows the
+	//Lexer just far enough to know when it is in one of those.
+	static int[] cuts(char[] chars, int offset, int length){
+		ArrayList<Integer> cuts = new ArrayList<Integer>();
+		cuts.add(offset);
+		int end = offset + length;
+		int last = offset;
+		int depth = 0;
+		int i = offset;
+		while(i < end && depth >= 0){
+			char c = chars[i];
+			byte kind = Lexer.classOf(c);
+			if(kind == Lexer.SPACE){
+				i++;
+			}else if(c == ';'){
+				while(i < end && chars[i] != '\n')
+					i++;
+			}else if(c == '('){
+				depth++;
+				i++;
+			}else if(c == ')'){
+				depth--;
+				i++;
+				if(depth == 0 && i - last >= CHUNK){
+					cuts.add(i);
+					last = i;
+				}
+			}else if(c == '#'){
+				//a boolean is always two chars
+				i += 2;
+			}else if(c == '"'){
+				i++;
+				while(i < end && chars[i] != '"')
+					i++;
+				i++;
+			}else if(kind == Lexer.DIGIT){
+				i++;
+				while(i < end){
+					c = chars[i];
+					if(	Lexer.classOf(c) != Lexer.DIGIT &&
+						c != '.' && c != '/' && c != 'e' && c != 'E' &&
+						!((c == '-' || c == '+') && (chars[i - 1] == 'e' || chars[i - 1] == 'E')))
+						break;
+					i++;
+				}
+			}else{
+				while(i < end && Lexer.classOf(chars[i]) != Lexer.SPACE && Lexer.classOf(chars[i]) != Lexer.DELIMITER)
+					i++;
+			}
+		}
+		cuts.add(end);
+
+		int[] result = new int[cuts.size()];
+		for(int k = 0; k < result.length; k++)
+			result[k] = cuts.get(k);
+		return result;
+	}
+
+	//A mapping of the file, or null if the file is too big to decode
+	//into one array.
+	static ByteBuffer map(String filename) throws Exception{
+		FileInputStream stream = new FileInputStream(filename);
+		try{
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE / 2)
+				return null;
+			return channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+		}finally{
+			stream.close();
+		}
+	}
+
+	//The chars of UTF-8 bytes.
+	static CharBuffer decode(ByteBuffer bytes) throws Exception{
+		return StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE)
+			.decode(bytes);
+	}
+}
+
+//The forms parsed from one piece of a file, and the error that stopped
+//the parse if there was one.
+class Chunk{
+	ArrayList<Expression> forms = new ArrayList<Expression>();
+	Exception error;
+
+	Chunk(){}
+
+	static Chunk parse(Lexer lexer){
+		Chunk chunk = new Chunk();
+		try{
+			Expression exp = Parser.parseSexp(lexer);
+			while(exp != null){
+				chunk.forms.add(exp);
+				exp = Parser.parseSexp(lexer);
+			}
+		}catch(Exception e){
+			chunk.error = e;
+		}
+		return chunk;
+	}
+}
+
+//Splits a file into chunks and starts parsing each of them. The chunks
+//are handed back as soon as they're started, so the first one can be
+//evaluated while the rest are still being parsed.
+//The path and hash of the file's contents are set here too, they key
+//the file's expansions in the ExpansionCache as they do for load. A
+//file with an up to date image only has the image read, it's loaded
+//the way load does when its turn comes, see Fasl.
+class ParseFile extends RecursiveTask<ParseChunk[]>{
+	private static final long serialVersionUID = 1L;
+
+	String filename;
+	String source;
+	long hash;
+	//false if the file was too big to hash
+	boolean keep;
+	ByteBuffer image;
+
+	ParseFile(String filename){
+		this.filename = filename;
+		this.source = new File(filename).getAbsolutePath();
+	}
+
+	protected ParseChunk[] compute(){
+		try{
+			String imageFile = filename.endsWith(".fasl") ? filename : Fasl.upToDateImage(filename);
+			if(imageFile != null){
+				image = Fasl.readFile(imageFile);
+				return new ParseChunk[0];
+			}
+
+			ByteBuffer bytes = Loader.map(filename);
+			ParseChunk[] tasks;
+			if(bytes == null){
+				tasks = new ParseChunk[]{new ParseChunk(filename)};
+			}else{
+				hash = ExpansionCache.hash(bytes);
+				keep = true;
+				CharBuffer text = Loader.decode(bytes);
+				char[] chars = text.array();
+				int[] cuts = Loader.cuts(chars,text.arrayOffset(),text.remaining());
+				tasks = new ParseChunk[cuts.length - 1];
+				for(int i = 0; i < tasks.length; i++)
+					tasks[i] = new ParseChunk(chars,cuts[i],cuts[i + 1]);
+			}
+			for(ParseChunk task : tasks)
+				task.fork();
+			return tasks;
+		}catch(Exception e){
+			throw new RuntimeException(e.getMessage(),e);
+		}
+	}
+}
+
+//Parses chars[start] to chars[end], or a whole file that was too big to
+//read into an array.
+class ParseChunk extends RecursiveTask<Chunk>{
+	private static final long serialVersionUID = 1L;
+
+	char[] chars;
+	int start;
+	int end;
+	String filename;
+
+	ParseChunk(String filename){
+		this.filename = filename;
+	}
+
+	ParseChunk(char[] chars, int start, int end){
+		this.chars = chars;
+		this.start = start;
+		this.end = end;
+	}
+
+	protected Chunk compute(){
+		if(filename == null)
+			return Chunk.parse(new Lexer(chars,start,end - start));
+		try{
+			Lexer lexer = Lexer.open(filename);
+			try{
+				return Chunk.parse(lexer);
+			}finally{
+				lexer.close();
+			}
+		}catch(Exception e){
+			Chunk chunk = new Chunk();
+			chunk.error = e;
+			return chunk;
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package Vole;
+
+//Evaluates the same forms as the interpreter, but with what is left to
+//do after each subexpression kept in Frames on the heap instead of on
+//the Java stack. The machine is in one of two states: evaluating exp
+//in env, or returning value to the Frame on top of k. Neither calls
+//that aren't in tail position nor the arguments of a call use the Java
+//stack, so recursion is only as deep as MAX_FRAMES allows, and the whole
+//state of an evaluation can be stopped between any two steps, or kept
+//as a continuation and gone back to, see call/cc.
+//
+//Frames are never changed once made, so the same k can be resumed any
+//number of times.
+class Machine{
+	//How many Frames k may hold before the evaluation is an error rather
+	//than running the heap out, vole.max.frames or one for every 512
+	//bytes of it.
+	static final int MAX_FRAMES = Integer.getInteger("vole.max.frames",(int) Math.min(Runtime.getRuntime().maxMemory() / 512,Integer.MAX_VALUE));
+
+	//call/cc outside of a Machine. The continuation can only be used to
+	//escape from inside the call, by throwing back to it. Its function is
+	//called from the caller's environment like any other call, so what
+	//knows that environment calls callCC instead, see apply_tramp.
+	static final JavaFunction CALL_CC = new JavaFunction(){
+		Expression call(Expression args) throws Exception{
+			return callCC(args,null);
+		}
+	};
+
+	static Expression callCC(Expression args, Environment env) throws Exception{
+		Continuation k = new Continuation(null,null);
+		try{
+			return Evaluator.trampoline(Evaluator.apply_tramp(((Pair) args).getCar(),new Pair(k,Pair.NIL),env));
+		}catch(ContinuationEscape e){
+			if(e.continuation != k)
+				throw e;
+			return e.value;
+		}
+	}
+
+	Expression exp;
+	Environment env;
+	Expression value;
+	boolean returning;
+	Frame k;
+
+	//A continuation of this Machine resumed from Java code it called
+	//can only get back to it while it runs.
+	boolean running;
+
+	//set for the Machine of a task made with spawn
+	Task task;
+	boolean done;
+	//What the Machine is parked on, see TaskFunction. It goes on when
+	//the Waiter is woken, by throwing failure if that is set.
+	Waiter waiting;
+	Exception failure;
+
+	Machine(Expression exp, Environment env){
+		this.exp = exp;
+		this.env = env;
+	}
+
+	static Expression eval(Expression exp, Environment env) throws Exception{
+		return new Machine(exp,env).run();
+	}
+
+	//Runs the evaluation to the end. Tasks get a turn whenever it waits,
+	//and every quantum steps if there are any ready.
+	Expression run() throws Exception{
+		while(true){
+			Expression value = run(Scheduler.QUANTUM);
+			if(done)
+				return value;
+			Scheduler scheduler = Context.current().scheduler;
+			if(waiting != null)
+				scheduler.await(waiting);
+			else if(scheduler != null)
+				scheduler.runReady();
+		}
+	}
+
+	//Takes up to steps steps, returning the value if that finishes the
+	//evaluation, see done.
+	Expression run(int steps) throws Exception{
+		running = true;
+		try{
+			while(true){
+				try{
+					if(failure != null){
+						Exception e = failure;
+						failure = null;
+						throw e;
+					}
+					for(; steps > 0 && waiting == null; steps--){
+						if(!returning){
+							step();
+						}else if(k == null){
+							done = true;
+							return value;
+						}else{
+							Frame frame = k;
+							k = frame.next;
+							frame.resume(this,value);
+						}
+						if(k != null && k.depth > MAX_FRAMES)
+							throw new Exception("More than ".concat(Integer.toString(MAX_FRAMES)).concat(" calls and arguments waiting, run with a bigger vole.max.frames."));
+					}
+					return null;
+				}catch(ContinuationEscape e){
+					//from something this Machine called that wasn't run here
+					if(e.continuation.machine != this)
+						throw e;
+					k = e.continuation.k;
+					give(e.value);
+				}
+			}
+		}finally{
+			running = false;
+		}
+	}
+
+	void give(Expression value){
+		this.value = value;
+		returning = true;
+	}
+
+	//Evaluates exp in env next.
+	void start(Expression exp, Environment env){
+		this.exp = exp;
+		this.env = env;
+		returning = false;
+	}
+
+	//What a Node or a builtin gave back, a Thunk is evaluated here.
+	void take(Expression result){
+		if(result != null && result.isThunk())
+			start(((Thunk) result).getExp(),((Thunk) result).getEnv());
+		else
+			give(result);
+	}
+
+	//One step of evaluating exp, the same as Evaluator.eval_tramp.
+	void step() throws Exception{
+		Expression exp = this.exp;
+		if(Context.debugging())
+			Evaluator.trace("eval() called on:\t",exp);
+
+		if(exp == null){
+			give(null);
+			return;
+		}
+
+		if(exp.isAtom()){
+			if(exp.isSymbol()){
+				Expression val = env.lookUp((SymbolVal) exp);
+				if(val == null)
+					throw new Exception("Symbol ".concat(((SymbolVal) exp).getIdentifier()).concat(" is undefined."));
+				give(val);
+			}else if(exp.isNode()){
+				take(((Node) exp).execute(env));
+			}else{
+				give(exp);
+			}
+			return;
+		}
+
+		if(!exp.isList())
+			throw new Exception("Eval couldn't couldn't figure out how to evaluate that statement. Maybe you should rethink it.");
+
+		Pair list = (Pair) exp;
+		Expression car = list.getCar();
+		Expression cdr = list.getCdr();
+		if(car.isSymbol()){
+			SymbolVal sym = (SymbolVal) car;
+			Expression val = env.lookUp(sym);
+			if(val != null){
+				evalArgs(val,Pair.NIL,cdr,env);
+				return;
+			}
+
+			String name = sym.getIdentifier();
+			if(name.equals("if")){
+				k = new IfFrame((Pair) cdr,env,k);
+				start(((Pair) cdr).getCar(),env);
+			}else if(name.equals("lambda")){
+				give(new Lambda(cdr,env));
+			}else if(name.equals("define")){
+				if(!cdr.isList())
+					throw new Exception("define expects at least two arguments.");
+				Expression cadr = ((Pair) cdr).getCar();
+				if(!cadr.isSymbol())
+					throw new Exception("define expects a symbol as the first argument.");
+				if(env.lookUp((SymbolVal) cadr) != null)
+					throw new Exception("Symbol ".concat(((SymbolVal) cadr).getIdentifier()).concat(" is already defined."));
+				k = new DefineFrame((SymbolVal) cadr,env,k);
+				start(((Pair) ((Pair) cdr).getCdr()).getCar(),env);
+			}else if(name.equals("current-environment")){
+				give(env);
+			}else if(name.equals("load")){
+				Expression cadr = ((Pair) cdr).getCar();
+				if(!cadr.isString())
+					throw new Exception("(load _) expects a filename as the first argument.");
+				Evaluator.load(((StringVal) cadr).getVal(),env);
+				give(null);
+			}else if(name.equals("load-all")){
+				String[] filenames = Loader.filenames(cdr);
+				if(filenames == null)
+					throw new Exception("(load-all _ ...) expects filenames as arguments.");
+				Loader.loadAll(filenames,env);
+				give(null);
+			}else if(name.equals("toggle-debug")){
+				give(BooleanVal.valueOf(Context.current().toggleDebug()));
+			}else{
+				throw new Exception("Undefined symbol: ".concat(car.toString()));
+			}
+			return;
+		}
+
+		//((stuff) args ...) and (<fn> args)
+		k = new OperatorFrame(cdr,env,k);
+		start(car,env);
+	}
+
+	//Evaluates the forms in rest, then applies fn to the values in done,
+	//which are in reverse order, followed by those.
+	void evalArgs(Expression fn, Pair done, Expression rest, Environment env) throws Exception{
+		if(rest.isPair()){
+			k = new ArgFrame(fn,done,((Pair) rest).getCdr(),env,k);
+			start(((Pair) rest).getCar(),env);
+			return;
+		}
+		//a list of forms that doesn't end in (list) keeps its last cdr
+		Expression args = rest;
+		for(Expression e = done; e.isPair(); e = ((Pair) e).getCdr())
+			args = new Pair(((Pair) e).getCar(),args);
+		this.env = env;
+		apply(fn,args);
+	}
+
+	//Applies fn to args with env as the caller's environment, the same
+	//as Evaluator.apply_tramp.
+	void apply(Expression fn, Expression args) throws Exception{
+		if(fn != null && fn.isLambda()){
+			if(Context.debugging())
+				Evaluator.trace("apply() called on:\t",new Pair(fn,args));
+			Lambda lambda = (Lambda) fn;
+			Expression[] vals = Evaluator.toArray(args);
+			Params params = lambda.getParams();
+			if(params.takes(vals.length)){
+				start(lambda.getInterpretedExp(),lambda.getEvalEnvironment(vals,0,vals.length,env));
+				return;
+			}
+
+			//((<lambda> first-args) rest-args)
+			int n = params.args.length;
+			Expression rest = args;
+			for(int i = 0; i < n; i++)
+				rest = ((Pair) rest).getCdr();
+			k = new CurryFrame(rest,env,k);
+			start(lambda.getInterpretedExp(),lambda.getEvalEnvironment(vals,0,n,env));
+		}else if(fn instanceof Continuation){
+			Continuation continuation = (Continuation) fn;
+			Expression value = args.isPair() ? ((Pair) args).getCar() : null;
+			if(continuation.machine != this)
+				throw continuation.escape(value);
+			k = continuation.k;
+			give(value);
+		}else if(fn instanceof TaskFunction){
+			Waiter waiter = new Waiter(Context.current().scheduler(),this);
+			Expression value = ((TaskFunction) fn).attempt(args,waiter);
+			if(value == Waiter.WAIT)
+				waiting = waiter;
+			else
+				give(value);
+		}else if(fn == CALL_CC){
+			apply(((Pair) args).getCar(),new Pair(new Continuation(this,k),Pair.NIL));
+		}else{
+			take(Evaluator.apply_tramp(fn,args,env));
+		}
+	}
+}
+
+//What to do with the value of a subexpression.
+abstract class Frame{
+	final Frame next;
+	//how many Frames there are from this one down
+	final int depth;
+
+	Frame(Frame next){
+		this.next = next;
+		depth = next != null ? next.depth + 1 : 1;
+	}
+
+	abstract void resume(Machine machine, Expression value) throws Exception;
+}
+
+//(if <test> a b) once the test has a value.
+class IfFrame extends Frame{
+	final Pair forms;
+	final Environment env;
+
+	IfFrame(Pair forms, Environment env, Frame next){
+		super(next);
+		this.forms = forms;
+		this.env = env;
+	}
+
+	void resume(Machine machine, Expression value){
+		if(value == BooleanVal.TRUE)
+			machine.start(((Pair) forms.getCdr()).getCar(),env);
+		else
+			machine.start(((Pair) ((Pair) forms.getCdr()).getCdr()).getCar(),env);
+	}
+}
+
+class DefineFrame extends Frame{
+	final SymbolVal name;
+	final Environment env;
+
+	DefineFrame(SymbolVal name, Environment env, Frame next){
+		super(next);
+		this.name = name;
+		this.env = env;
+	}
+
+	void resume(Machine machine, Expression value){
+		env.add(name,value);
+		machine.give(null);
+	}
+}
+
+//A call whose function is being evaluated.
+class OperatorFrame extends Frame{
+	final Expression args;
+	final Environment env;
+
+	OperatorFrame(Expression args, Environment env, Frame next){
+		super(next);
+		this.args = args;
+		this.env = env;
+	}
+
+	void resume(Machine machine, Expression value) throws Exception{
+		machine.evalArgs(value,Pair.NIL,args,env);
+	}
+}
+
+//A call with the values of the arguments before this one in done.
+class ArgFrame extends Frame{
+	final Expression fn;
+	final Pair done;
+	final Expression rest;
+	final Environment env;
+
+	ArgFrame(Expression fn, Pair done, Expression rest, Environment env, Frame next){
+		super(next);
+		this.fn = fn;
+		this.done = done;
+		this.rest = rest;
+		this.env = env;
+	}
+
+	void resume(Machine machine, Expression value) throws Exception{
+		machine.evalArgs(fn,new Pair(value,done),rest,env);
+	}
+}
+
+//A lambda called with more arguments than it takes, the value of its
+//body is applied to the rest.
+class CurryFrame extends Frame{
+	final Expression args;
+	final Environment env;
+
+	CurryFrame(Expression args, Environment env, Frame next){
+		super(next);
+		this.args = args;
+		this.env = env;
+	}
+
+	void resume(Machine machine, Expression value) throws Exception{
+		machine.env = env;
+		machine.apply(value,args);
+	}
+}
+
+//What a call/cc was going to do with its value. Called with a value, it
+//goes back to doing that. One made outside of a Machine, or called from
+//outside the Machine that made it, gets back by throwing.
+class Continuation extends JavaFunction{
+	final Machine machine;
+	final Frame k;
+
+	Continuation(Machine machine, Frame k){
+		this.machine = machine;
+		this.k = k;
+	}
+
+	Expression call(Expression args) throws Exception{
+		throw escape(args.isPair() ? ((Pair) args).getCar() : null);
+	}
+
+	ContinuationEscape escape(Expression value){
+		if(machine == null)
+			return new ContinuationEscape(this,value,"Continuation called after its call/cc returned, only the CEK mode can go back into one.");
+		return new ContinuationEscape(this,value,"Continuation called after the evaluation that made it returned.");
+	}
+
+	public String toString(){
+		return "<continuation>";
+	}
+}
+
+//Carries a value back to a continuation through Java code. Nothing
+//should see one unless the continuation can't be got back to, so it
+//has a message and no stack trace.
+class ContinuationEscape extends Exception{
+	private static final long serialVersionUID = 1L;
+
+	final Continuation continuation;
+	final Expression value;
+
+	ContinuationEscape(Continuation continuation, Expression value, String message){
+		super(message,null,false,false);
+		this.continuation = continuation;
+		this.value = value;
+	}
+}
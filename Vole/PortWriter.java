@@ -0,0 +1,171 @@
+package Vole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//The Writer behind an output port. Output is kept in a buffer and only
+//handed to the Writer underneath when the buffer is full (FULL), at the
+//end of every line (LINE), or right away (UNBUFFERED). flush-output,
+//close-port and a Vole finishing what it was asked to run flush it, and
+//whatever is left in open buffers when the JVM exits is flushed then.
+class PortWriter extends Writer{
+	//flush policies
+	static final int UNBUFFERED = 0;
+	static final int LINE = 1;
+	static final int FULL = 2;
+
+	static final int SIZE = Integer.getInteger("vole.port.buffer",8192);
+	//the biggest buffer a port can ask for, see open-output-file
+	static final int MAX_SIZE = 1 << 20;
+
+	//Writers with output that hasn't been flushed, flushed on exit. They
+	//are held strongly, so a port dropped without being closed still
+	//gets its output written, and are only in here until they're flushed
+	//or closed.
+	static final Set<PortWriter> pending = ConcurrentHashMap.newKeySet();
+	static{
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				for(PortWriter writer : new ArrayList<PortWriter>(pending)){
+					try{
+						writer.flush();
+					}catch(Exception e){
+						//nowhere left to report it
+					}
+				}
+			}
+		});
+	}
+
+	Writer out;
+	int policy;
+	char[] buf;
+	int count;
+	boolean closed;
+	//set while the writer is in pending
+	boolean dirty;
+
+	PortWriter(Writer out, int policy, int size){
+		this.out = out;
+		this.policy = policy;
+		this.buf = new char[policy == UNBUFFERED ? 0 : Math.max(size,1)];
+	}
+
+	PortWriter(Writer out, int policy){
+		this(out,policy,SIZE);
+	}
+
+	//Every write holds lock, so the flush on exit never sees half of one.
+	public void write(int c) throws IOException{
+		synchronized(lock){
+			if(policy == UNBUFFERED){
+				out.write(c);
+				out.flush();
+				return;
+			}
+			pend();
+			if(count == buf.length)
+				flushBuffer();
+			buf[count++] = (char) c;
+			if(c == '\n' && policy == LINE)
+				flush();
+		}
+	}
+
+	public void write(char[] chars, int offset, int length) throws IOException{
+		synchronized(lock){
+			if(policy == UNBUFFERED){
+				out.write(chars,offset,length);
+				out.flush();
+				return;
+			}
+			pend();
+			if(length > buf.length - count)
+				flushBuffer();
+			if(length >= buf.length){
+				//too big to be worth copying
+				out.write(chars,offset,length);
+			}else{
+				System.arraycopy(chars,offset,buf,count,length);
+				count += length;
+			}
+			if(policy == LINE){
+				for(int i = offset; i < offset + length; i++){
+					if(chars[i] == '\n'){
+						flush();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	public void write(String str, int offset, int length) throws IOException{
+		synchronized(lock){
+			if(policy == UNBUFFERED){
+				out.write(str,offset,length);
+				out.flush();
+				return;
+			}
+			pend();
+			if(length > buf.length - count)
+				flushBuffer();
+			if(length >= buf.length){
+				out.write(str,offset,length);
+			}else{
+				str.getChars(offset,offset + length,buf,count);
+				count += length;
+			}
+			if(policy == LINE){
+				int newline = str.indexOf('\n',offset);
+				if(newline >= 0 && newline < offset + length)
+					flush();
+			}
+		}
+	}
+
+	//Puts the writer in pending before something is written to it.
+	void pend(){
+		if(!dirty){
+			dirty = true;
+			pending.add(this);
+		}
+	}
+
+	//Hands the buffer to the Writer underneath without flushing that.
+	void flushBuffer() throws IOException{
+		if(count > 0){
+			out.write(buf,0,count);
+			count = 0;
+		}
+	}
+
+	public void flush() throws IOException{
+		synchronized(lock){
+			flushBuffer();
+			out.flush();
+			if(dirty){
+				dirty = false;
+				pending.remove(this);
+			}
+		}
+	}
+
+	public void close() throws IOException{
+		synchronized(lock){
+			if(closed)
+				return;
+			closed = true;
+			try{
+				flush();
+			}finally{
+				dirty = false;
+				pending.remove(this);
+				out.close();
+			}
+		}
+	}
+}
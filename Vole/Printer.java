@@ -0,0 +1,232 @@
+package Vole;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+//Writes expressions to a Writer as it walks them, with a stack of its
+//own instead of the Java one, so lists of any length and depth print
+//without building Strings for their parts. Lists print as (a b c),
+//pairs that don't end a list and toString print as (cons a b). A list
+//that contains itself prints ... where it would start over, as do lists
+//nested deeper than vole.print.depth and elements past
+//vole.print.length, if those are set.
+class Printer{
+	static final int MAX_DEPTH = Integer.getInteger("vole.print.depth",0);
+	static final int MAX_LENGTH = Integer.getInteger("vole.print.length",0);
+
+	//0 for no limit
+	int maxDepth;
+	int maxLength;
+
+	Writer out;
+	ArrayDeque<Object> stack = new ArrayDeque<Object>();
+	//The first pair of each open list. Printing can only go on forever
+	//by starting one of them again inside itself, or by coming back to a
+	//pair in the same list, which the list's slow pointer catches.
+	IdentityHashMap<Pair,Pair> open = new IdentityHashMap<Pair,Pair>();
+	int depth;
+
+	Printer(Writer out, int maxDepth, int maxLength){
+		this.out = out;
+		this.maxDepth = maxDepth;
+		this.maxLength = maxLength;
+	}
+
+	Printer(Writer out){
+		this(out,MAX_DEPTH,MAX_LENGTH);
+	}
+
+	//An expression to print, as an element of a list or in toString's
+	//(cons a b) form.
+	static class Item{
+		final Expression exp;
+		final boolean cons;
+
+		Item(Expression exp, boolean cons){
+			this.exp = exp;
+			this.cons = cons;
+		}
+	}
+
+	//A list being printed. rest is what's left of it and slow follows
+	//it at half speed.
+	static class Open{
+		final boolean cons;
+		final Pair head;
+		Expression rest;
+		Pair slow;
+		int length;
+		//how many (cons are waiting for their )
+		int closers;
+
+		Open(boolean cons, Pair head){
+			this.cons = cons;
+			this.head = head;
+			this.rest = head;
+		}
+	}
+
+	public static void printExpression(Expression expr, Writer out){
+		try{
+			new Printer(out).print(expr);
+		}catch(Exception e){
+			e.printStackTrace();
+		}
+	}
+
+	//What toString gives for exp, in the (cons a b) form.
+	static String toString(Expression exp){
+		StringWriter out = new StringWriter();
+		try{
+			Printer printer = new Printer(out);
+			printer.stack.push(new Item(exp,true));
+			printer.run();
+		}catch(Exception e){
+			//a StringWriter doesn't fail
+		}
+		return out.toString();
+	}
+
+	void print(Expression exp) throws Exception{
+		stack.push(new Item(exp,false));
+		run();
+	}
+
+	void run() throws Exception{
+		while(!stack.isEmpty()){
+			Object next = stack.pop();
+			if(next instanceof String)
+				out.write((String) next);
+			else if(next instanceof Open)
+				step((Open) next);
+			else
+				start((Item) next);
+		}
+	}
+
+	void start(Item item) throws Exception{
+		Expression exp = item.exp;
+		if(exp == null){
+			out.write("<unspecified>");
+		}else if(exp.isPair()){
+			if((maxDepth > 0 && depth >= maxDepth) || open.containsKey(exp)){
+				out.write("...");
+				return;
+			}
+			//a pair that doesn't start a list prints as (cons a b) either way
+			boolean cons = item.cons || !exp.isList();
+			if(!cons)
+				out.write("(");
+			depth++;
+			open.put((Pair) exp,(Pair) exp);
+			step(new Open(cons,(Pair) exp));
+		}else if(exp.isNil()){
+			out.write("(list)");
+		}else if(exp instanceof Lambda){
+			Lambda lambda = (Lambda) exp;
+			out.write("<lambda arg=");
+			out.write(lambda.params.toString());
+			out.write(" exp=");
+			stack.push(">");
+			stack.push(new Item(lambda.exp,false));
+		}else if(exp instanceof LambdaForm){
+			LambdaForm form = (LambdaForm) exp;
+			out.write("(lambda ");
+			out.write(form.params.toString());
+			out.write(" ");
+			stack.push(")");
+			stack.push(new Item(form.exp,false));
+		}else if(exp instanceof ConstantNode){
+			stack.push(new Item(((ConstantNode) exp).val,true));
+		}else{
+			out.write(exp.toString());
+		}
+	}
+
+	//Prints the next element of a list and leaves the list on the stack
+	//to come back to, or closes it.
+	void step(Open list) throws Exception{
+		if(list.cons)
+			stepCons(list);
+		else
+			stepList(list);
+	}
+
+	void stepList(Open list) throws Exception{
+		if(list.rest == null){
+			finish(list);
+			out.write(")");
+			return;
+		}
+		Pair pair = (Pair) list.rest;
+		if((maxLength > 0 && list.length >= maxLength) || !advance(list,pair)){
+			finish(list);
+			out.write(list.length > 0 ? " ...)" : "...)");
+			return;
+		}
+		if(list.length > 1)
+			out.write(" ");
+
+		stack.push(list);
+		if(pair.isList()){
+			Expression cdr = pair.getCdr();
+			list.rest = cdr.isPair() ? cdr : null;
+			stack.push(new Item(pair.getCar(),false));
+		}else{
+			//The last pair of a list that doesn't end in (list) is
+			//printed whole as its last element.
+			list.rest = null;
+			stack.push(new Item(pair,true));
+		}
+	}
+
+	void stepCons(Open list) throws Exception{
+		Expression rest = list.rest;
+		if(rest == null || !rest.isPair()){
+			finish(list);
+			stack.push(closers(list));
+			stack.push(new Item(rest,true));
+			return;
+		}
+		Pair pair = (Pair) rest;
+		if((maxLength > 0 && list.length >= maxLength) || !advance(list,pair)){
+			finish(list);
+			out.write("...");
+			out.write(closers(list));
+			return;
+		}
+		out.write("(cons ");
+		list.closers++;
+		list.rest = pair.getCdr();
+		stack.push(list);
+		stack.push(" ");
+		stack.push(new Item(pair.getCar(),true));
+	}
+
+	//Moves the list on to pair, false if printing it would go round a
+	//cycle.
+	boolean advance(Open list, Pair pair){
+		if(pair == list.slow)
+			return false;
+		list.length++;
+		if(list.slow == null)
+			list.slow = pair;
+		else if((list.length & 1) == 0)
+			list.slow = (Pair) list.slow.getCdr();
+		return true;
+	}
+
+	void finish(Open list){
+		open.remove(list.head);
+		depth--;
+	}
+
+	static String closers(Open list){
+		StringBuilder closers = new StringBuilder(list.closers);
+		for(int i = 0; i < list.closers; i++)
+			closers.append(')');
+		return closers.toString();
+	}
+}
@@ -0,0 +1,383 @@
+package Vole;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Runs the tasks made with spawn, each a Machine of its own, on the
+//thread running the interpreter that made them, so they share its top
+//level without locking. A task runs for vole.task.quantum steps at a
+//time, or until it has to wait on a channel, a read or yield, and then
+//the next ready task runs. The evaluation the interpreter was asked to
+//run lets tasks run when it waits, every quantum steps of a Machine or
+//bounces of the trampoline, and before the Vole method returns.
+//
+//Forms run by the CEK mode wait by parking their Machine. Compiled code
+//can only wait by running the other tasks from where it is, on the Java
+//stack, see TaskFunction.call.
+class Scheduler{
+	static final int QUANTUM = Integer.getInteger("vole.task.quantum",1000);
+
+	//How many tasks haven't finished, in every interpreter, so the
+	//trampoline only looks for its Scheduler when there may be some.
+	static final AtomicInteger live = new AtomicInteger();
+
+	//Reads that would block the interpreter's thread run on these.
+	static ExecutorService io;
+
+	ArrayDeque<Task> ready = new ArrayDeque<Task>();
+	//the task whose Machine is running, null for the evaluation itself
+	Task current;
+	//tasks that haven't finished
+	int count;
+	int ticks;
+
+	//Waiters whose read has finished on another thread, woken here.
+	LinkedBlockingQueue<Waiter> woken = new LinkedBlockingQueue<Waiter>();
+	int reading;
+
+	Task spawn(Expression fn){
+		Task task = new Task(this,new Machine(new Pair(fn,Pair.NIL),null));
+		count++;
+		live.incrementAndGet();
+		ready.add(task);
+		return task;
+	}
+
+	//Lets the other tasks run if the evaluation has had the thread for
+	//a quantum of bounces. Tasks aren't preempted this way, their
+	//Machines stop by themselves.
+	static void tick(Context context) throws Exception{
+		Scheduler scheduler = context.scheduler;
+		if(scheduler != null && scheduler.current == null && ++scheduler.ticks >= QUANTUM){
+			scheduler.ticks = 0;
+			scheduler.runReady();
+		}
+	}
+
+	//Gives each task that is ready, and each finished read, a turn.
+	void runReady() throws Exception{
+		Waiter waiter;
+		while((waiter = woken.poll()) != null)
+			wakeRead(waiter);
+		for(int n = ready.size(); n > 0 && !ready.isEmpty(); n--)
+			run(ready.poll());
+	}
+
+	//Runs the other tasks until waiter has been woken. An error if
+	//nothing is left that could wake it.
+	void await(Waiter waiter) throws Exception{
+		if(waiter.yielding){
+			runReady();
+			waiter.wake(null);
+			return;
+		}
+		while(!waiter.done){
+			Task next = ready.poll();
+			if(next != null)
+				run(next);
+			else if(reading > 0)
+				wakeRead(woken.take());
+			else{
+				waiter.cancelled = true;
+				throw new Exception("Waiting on a channel no other task can use.");
+			}
+		}
+		if(waiter.error != null)
+			throw waiter.error;
+	}
+
+	//Runs tasks until none of them can go on, before the interpreter
+	//returns.
+	void finish() throws Exception{
+		while(!ready.isEmpty() || reading > 0){
+			if(ready.isEmpty())
+				wakeRead(woken.take());
+			else
+				runReady();
+		}
+	}
+
+	//One turn of task. A task that fails is dropped after its error is
+	//written to the current error port.
+	void run(Task task) throws Exception{
+		Task previous = current;
+		current = task;
+		Machine machine = task.machine;
+		try{
+			machine.run(QUANTUM);
+		}catch(Exception e){
+			machine.done = true;
+			report(e);
+		}finally{
+			current = previous;
+		}
+
+		if(machine.done){
+			count--;
+			live.decrementAndGet();
+		}else if(machine.waiting == null){
+			ready.add(task);
+		}else if(machine.waiting.yielding){
+			machine.waiting.wake(null);
+		}
+	}
+
+	static void report(Exception e){
+		Port port = Context.current().error;
+		Writer writer = port != null && port.getOutput() != null ? port.getOutput() : new OutputStreamWriter(System.err);
+		PrintWriter out = new PrintWriter(writer);
+		out.print("Error in task: ");
+		e.printStackTrace(out);
+		out.flush();
+	}
+
+	//Reads the next form from lexer on another thread, waking waiter
+	//with it.
+	void read(final Lexer lexer, final Waiter waiter){
+		synchronized(Scheduler.class){
+			if(io == null)
+				io = VolePool.requestThreads();
+		}
+		reading++;
+		io.execute(new Runnable(){
+			public void run(){
+				try{
+					synchronized(lexer){
+						Expression exp = Parser.parseSexp(lexer);
+						waiter.result = exp != null ? exp : EofVal.EOF;
+					}
+				}catch(Exception e){
+					waiter.error = e;
+				}
+				woken.add(waiter);
+			}
+		});
+	}
+
+	void wakeRead(Waiter waiter){
+		reading--;
+		if(waiter.error != null)
+			waiter.fail(waiter.error);
+		else
+			waiter.wake(waiter.result);
+	}
+}
+
+//A computation started with spawn.
+class Task extends Atom{
+	final Scheduler scheduler;
+	final Machine machine;
+
+	Task(Scheduler scheduler, Machine machine){
+		this.scheduler = scheduler;
+		this.machine = machine;
+		machine.task = this;
+	}
+
+	public String toString(){
+		return "<task>";
+	}
+
+	public boolean equals(Object e){
+		return e == this;
+	}
+}
+
+//A task, or Java code, waiting for a channel, a read or its turn.
+class Waiter{
+	//what TaskFunction.attempt gives back when it has to wait
+	static final Expression WAIT = new Atom(){
+		public String toString(){
+			return "<wait>";
+		}
+
+		public boolean equals(Object e){
+			return e == this;
+		}
+	};
+
+	final Scheduler scheduler;
+	//the Machine to go on with the value, null for Java code
+	final Machine machine;
+	boolean done;
+	boolean cancelled;
+	boolean yielding;
+	Expression value;
+	Exception error;
+	//what a send is sending, or what a read has read
+	Expression result;
+
+	Waiter(Scheduler scheduler, Machine machine){
+		this.scheduler = scheduler;
+		this.machine = machine;
+	}
+
+	void wake(Expression value){
+		done = true;
+		this.value = value;
+		if(machine != null){
+			machine.waiting = null;
+			machine.give(value);
+			if(machine.task != null && machine.task != scheduler.current)
+				scheduler.ready.add(machine.task);
+		}
+	}
+
+	void fail(Exception error){
+		this.error = error;
+		if(machine != null)
+			machine.failure = error;
+		wake(null);
+	}
+}
+
+//A builtin that may have to wait. A Machine parks itself until the
+//Waiter is woken, Java code calling it runs other tasks until then.
+abstract class TaskFunction extends JavaFunction{
+
+	//The value, or Waiter.WAIT after arranging for waiter to be woken
+	//with it.
+	abstract Expression attempt(Expression args, Waiter waiter) throws Exception;
+
+	Expression call(Expression args) throws Exception{
+		Scheduler scheduler = Context.current().scheduler();
+		Waiter waiter = new Waiter(scheduler,null);
+		Expression value = attempt(args,waiter);
+		if(value != Waiter.WAIT)
+			return value;
+		scheduler.await(waiter);
+		return waiter.value;
+	}
+}
+
+//Sends pass values from one task to another. A channel holds up to its
+//capacity of them, past that a send waits for a receive, and a receive
+//waits for a send when there are none.
+class Channel extends Atom{
+	final int capacity;
+	final ArrayDeque<Expression> buffer = new ArrayDeque<Expression>();
+	final ArrayDeque<Waiter> senders = new ArrayDeque<Waiter>();
+	final ArrayDeque<Waiter> receivers = new ArrayDeque<Waiter>();
+
+	Channel(int capacity){
+		this.capacity = capacity;
+	}
+
+	Expression send(Expression value, Waiter waiter){
+		Waiter receiver = next(receivers);
+		if(receiver != null){
+			receiver.wake(value);
+			return null;
+		}
+		if(buffer.size() < capacity){
+			buffer.add(value);
+			return null;
+		}
+		waiter.result = value;
+		senders.add(waiter);
+		return Waiter.WAIT;
+	}
+
+	Expression receive(Waiter waiter){
+		Waiter sender = next(senders);
+		if(!buffer.isEmpty()){
+			Expression value = buffer.poll();
+			if(sender != null){
+				buffer.add(sender.result);
+				sender.wake(null);
+			}
+			return value;
+		}
+		if(sender != null){
+			sender.wake(null);
+			return sender.result;
+		}
+		receivers.add(waiter);
+		return Waiter.WAIT;
+	}
+
+	//skipping waiters that gave up
+	static Waiter next(ArrayDeque<Waiter> waiters){
+		Waiter waiter = waiters.poll();
+		while(waiter != null && waiter.cancelled)
+			waiter = waiters.poll();
+		return waiter;
+	}
+
+	public String toString(){
+		return "<channel>";
+	}
+
+	public boolean equals(Object e){
+		return e == this;
+	}
+}
+
+class TaskLib{
+	TaskLib(){}
+
+	static Environment getEnv(){
+		Environment env = new Environment();
+
+		//(spawn thunk) runs (thunk) as a task of its own.
+		JavaFunction spawn = new JavaFunction(){
+			Expression call(Expression exp) throws Exception{
+				Pair list = (Pair) exp;
+				Expression fn = list.getCar();
+				if(fn == null || !(fn.isLambda() || fn.isJavaFunction()))
+					throw new Exception("(spawn _) expects a procedure as an argument.");
+				return Context.current().scheduler().spawn(fn);
+			}
+		};
+		env.add(SymbolVal.intern("spawn"),spawn);
+
+		TaskFunction yield = new TaskFunction(){
+			Expression attempt(Expression exp, Waiter waiter){
+				waiter.yielding = true;
+				return Waiter.WAIT;
+			}
+		};
+		env.add(SymbolVal.intern("yield"),yield);
+
+		//(make-channel) or (make-channel capacity)
+		JavaFunction makeChannel = new JavaFunction(){
+			Expression call(Expression exp) throws Exception{
+				if(exp.isNil())
+					return new Channel(0);
+				Expression a = ((Pair) exp).getCar();
+				if(!(a instanceof FixnumVal) || ((FixnumVal) a).val < 0)
+					throw new Exception("(make-channel _) expects a capacity of zero or more.");
+				return new Channel((int) Math.min(((FixnumVal) a).val,Integer.MAX_VALUE));
+			}
+		};
+		env.add(SymbolVal.intern("make-channel"),makeChannel);
+
+		TaskFunction send = new TaskFunction(){
+			Expression attempt(Expression exp, Waiter waiter) throws Exception{
+				Pair list = (Pair) exp;
+				Expression a = list.getCar();
+				if(!(a instanceof Channel) || !list.getCdr().isPair())
+					throw new Exception("(send _ _) expects a channel and a value.");
+				return ((Channel) a).send(((Pair) list.getCdr()).getCar(),waiter);
+			}
+		};
+		env.add(SymbolVal.intern("send"),send);
+
+		TaskFunction receive = new TaskFunction(){
+			Expression attempt(Expression exp, Waiter waiter) throws Exception{
+				Expression a = exp.isPair() ? ((Pair) exp).getCar() : null;
+				if(!(a instanceof Channel))
+					throw new Exception("(receive _) expects a channel.");
+				return ((Channel) a).receive(waiter);
+			}
+		};
+		env.add(SymbolVal.intern("receive"),receive);
+
+		return env;
+	}
+}
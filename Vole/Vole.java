@@ -1,22 +1,31 @@
 package Vole;
 
+import java.io.File;
 import java.io.Reader;
 import java.io.Writer;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.StringWriter;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.StringReader;
+import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.util.Scanner;
 import java.lang.System;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.math.BigInteger;
+import java.math.BigDecimal;
+import java.math.MathContext;
 
 
 abstract class Expression{
@@ -82,11 +91,17 @@ abstract class Expression{
 		return false;
 	}
 
+	boolean isNode(){
+		if(this instanceof Node)
+			return true;
+		return false;
+	}
+
 	boolean isNil(){
+		//The cdr is only looked at when the car is empty, so asking
+		//whether a LazyPair is nil doesn't read ahead.
 		if(this instanceof Pair){
-			Expression car = ((Pair) this).getCar();
-			Expression cdr = ((Pair) this).getCdr();
-			if(car == null && cdr == null)
+			if(((Pair) this).getCar() == null && ((Pair) this).getCdr() == null)
 				return true;
 		}
 		return false;
@@ -126,27 +141,435 @@ abstract class Atom extends Expression{
 
 }
 
-class NumberVal extends Atom{
-	BigInteger val;
+//Numbers. Exact integers that fit in a long are FixnumVals and bigger
+//ones are BignumVals, exact fractions are RatnumVals and everything
+//inexact is a FlonumVal. Each exact value has only one representation,
+//a ratnum with a denominator of one is always an integer and an integer
+//that fits in a long is always a fixnum.
+//
+//Arithmetic on two fixnums or two flonums is done on longs or doubles
+//directly. Otherwise an inexact operand makes the result inexact, then
+//a ratnum makes it a fraction, and integers stay integers.
+abstract class NumberVal extends Atom{
+	static final int CACHE_LOW = -128;
+	static final int CACHE_HIGH = 1024;
+	static final FixnumVal[] cache = new FixnumVal[CACHE_HIGH - CACHE_LOW + 1];
+	static{
+		for(int i = 0; i < cache.length; i++)
+			cache[i] = new FixnumVal(i + CACHE_LOW);
+	}
+
+	NumberVal(){}
+
+	static NumberVal valueOf(long val){
+		if(val >= CACHE_LOW && val <= CACHE_HIGH)
+			return cache[(int) val - CACHE_LOW];
+		return new FixnumVal(val);
+	}
+
+	static NumberVal valueOf(BigInteger val){
+		if(val.bitLength() < 64)
+			return valueOf(val.longValue());
+		return new BignumVal(val);
+	}
+
+	static NumberVal valueOf(double val){
+		return new FlonumVal(val);
+	}
+
+	//num/den in lowest terms, an integer if it divides out.
+	static NumberVal valueOf(BigInteger num, BigInteger den){
+		if(den.signum() == 0)
+			throw new ArithmeticException("Division by zero.");
+		if(den.signum() < 0){
+			num = num.negate();
+			den = den.negate();
+		}
+		BigInteger gcd = num.gcd(den);
+		if(!gcd.equals(BigInteger.ONE)){
+			num = num.divide(gcd);
+			den = den.divide(gcd);
+		}
+		if(den.equals(BigInteger.ONE))
+			return valueOf(num);
+		return new RatnumVal(num,den);
+	}
+
+	//The number text spells, or null if it isn't one. Accepts integers,
+	//fractions like 1/3 and decimals like -2.5 or 6.02e23.
+	static NumberVal parse(String text){
+		int start = text.startsWith("-") || text.startsWith("+") ? 1 : 0;
+		int slash = text.indexOf('/');
+		if(slash >= 0){
+			if(!isDigits(text,start,slash) || !isDigits(text,slash + 1,text.length()))
+				return null;
+			return valueOf(new BigInteger(text.substring(0,slash)),new BigInteger(text.substring(slash + 1)));
+		}
+		if(isDigits(text,start,text.length())){
+			if(text.length() < 19)
+				return valueOf(Long.parseLong(text));
+			return valueOf(new BigInteger(text));
+		}
+
+		int i = start;
+		int digits = 0;
+		while(i < text.length() && Character.isDigit(text.charAt(i))){
+			i++;
+			digits++;
+		}
+		if(i < text.length() && text.charAt(i) == '.'){
+			i++;
+			while(i < text.length() && Character.isDigit(text.charAt(i))){
+				i++;
+				digits++;
+			}
+		}
+		if(digits == 0)
+			return null;
+		if(i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E')){
+			i++;
+			if(i < text.length() && (text.charAt(i) == '-' || text.charAt(i) == '+'))
+				i++;
+			if(!isDigits(text,i,text.length()))
+				return null;
+			i = text.length();
+		}
+		if(i != text.length())
+			return null;
+		return valueOf(Double.parseDouble(text));
+	}
 
-	NumberVal(BigInteger val){
-		this.val = val;
+	static boolean isDigits(String text, int from, int to){
+		if(from >= to)
+			return false;
+		for(int i = from; i < to; i++)
+			if(!Character.isDigit(text.charAt(i)))
+				return false;
+		return true;
 	}
 
+	abstract boolean isExact();
+
+	abstract boolean isInteger();
+
+	abstract BigInteger numerator();
+
+	BigInteger denominator(){
+		return BigInteger.ONE;
+	}
+
+	abstract double doubleValue();
+
+	//The value as a BigInteger, for operations that only make sense on
+	//integers.
 	BigInteger getVal(){
+		if(!isInteger())
+			throw new ArithmeticException("Expected an integer but got ".concat(toString()).concat("."));
+		return numerator();
+	}
+
+	static NumberVal add(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal){
+			try{
+				return valueOf(Math.addExact(((FixnumVal) a).val,((FixnumVal) b).val));
+			}catch(ArithmeticException e){}
+		}else if(a instanceof FlonumVal && b instanceof FlonumVal){
+			return new FlonumVal(((FlonumVal) a).val + ((FlonumVal) b).val);
+		}
+		if(!a.isExact() || !b.isExact())
+			return new FlonumVal(a.doubleValue() + b.doubleValue());
+		if(a.isInteger() && b.isInteger())
+			return valueOf(a.numerator().add(b.numerator()));
+		return valueOf(	a.numerator().multiply(b.denominator()).add(b.numerator().multiply(a.denominator())),
+				a.denominator().multiply(b.denominator()));
+	}
+
+	static NumberVal subtract(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal){
+			try{
+				return valueOf(Math.subtractExact(((FixnumVal) a).val,((FixnumVal) b).val));
+			}catch(ArithmeticException e){}
+		}else if(a instanceof FlonumVal && b instanceof FlonumVal){
+			return new FlonumVal(((FlonumVal) a).val - ((FlonumVal) b).val);
+		}
+		if(!a.isExact() || !b.isExact())
+			return new FlonumVal(a.doubleValue() - b.doubleValue());
+		if(a.isInteger() && b.isInteger())
+			return valueOf(a.numerator().subtract(b.numerator()));
+		return valueOf(	a.numerator().multiply(b.denominator()).subtract(b.numerator().multiply(a.denominator())),
+				a.denominator().multiply(b.denominator()));
+	}
+
+	static NumberVal multiply(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal){
+			try{
+				return valueOf(Math.multiplyExact(((FixnumVal) a).val,((FixnumVal) b).val));
+			}catch(ArithmeticException e){}
+		}else if(a instanceof FlonumVal && b instanceof FlonumVal){
+			return new FlonumVal(((FlonumVal) a).val * ((FlonumVal) b).val);
+		}
+		if(!a.isExact() || !b.isExact())
+			return new FlonumVal(a.doubleValue() * b.doubleValue());
+		if(a.isInteger() && b.isInteger())
+			return valueOf(a.numerator().multiply(b.numerator()));
+		return valueOf(a.numerator().multiply(b.numerator()),a.denominator().multiply(b.denominator()));
+	}
+
+	//Exact division gives a fraction when it doesn't divide out.
+	static NumberVal divide(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal){
+			long x = ((FixnumVal) a).val;
+			long y = ((FixnumVal) b).val;
+			if(y != 0 && !(y == -1 && x == Long.MIN_VALUE) && x % y == 0)
+				return valueOf(x / y);
+		}else if(a instanceof FlonumVal && b instanceof FlonumVal){
+			return new FlonumVal(((FlonumVal) a).val / ((FlonumVal) b).val);
+		}
+		if(!a.isExact() || !b.isExact())
+			return new FlonumVal(a.doubleValue() / b.doubleValue());
+		return valueOf(a.numerator().multiply(b.denominator()),a.denominator().multiply(b.numerator()));
+	}
+
+	//Division by zero and MIN_VALUE / -1 go through BigInteger so they
+	//fail or promote the same way they always have.
+	static boolean fastDivide(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal){
+			long y = ((FixnumVal) b).val;
+			return y != 0 && !(y == -1 && ((FixnumVal) a).val == Long.MIN_VALUE);
+		}
+		return false;
+	}
+
+	static NumberVal[] divideAndRemainder(NumberVal a, NumberVal b){
+		if(fastDivide(a,b)){
+			long x = ((FixnumVal) a).val;
+			long y = ((FixnumVal) b).val;
+			return new NumberVal[]{valueOf(x / y),valueOf(x % y)};
+		}
+		BigInteger[] result = a.getVal().divideAndRemainder(b.getVal());
+		return new NumberVal[]{valueOf(result[0]),valueOf(result[1])};
+	}
+
+	static NumberVal and(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal)
+			return valueOf(((FixnumVal) a).val & ((FixnumVal) b).val);
+		return valueOf(a.getVal().and(b.getVal()));
+	}
+
+	static NumberVal abs(NumberVal a){
+		if(a instanceof FixnumVal && ((FixnumVal) a).val != Long.MIN_VALUE)
+			return valueOf(Math.abs(((FixnumVal) a).val));
+		if(a instanceof FlonumVal)
+			return new FlonumVal(Math.abs(((FlonumVal) a).val));
+		return valueOf(a.numerator().abs(),a.denominator());
+	}
+
+	//what compare gives when either number is NaN
+	static final int UNORDERED = 2;
+
+	//-1, 0 or 1 as a is less than, equal to or greater than b, or
+	//UNORDERED. Flonums compare the way doubles do, so -0.0 equals 0.0
+	//and NaN is neither less than, equal to nor greater than anything.
+	//An exact number is compared exactly with a finite flonum, not
+	//rounded to a double first.
+	static int compare(NumberVal a, NumberVal b){
+		if(a instanceof FixnumVal && b instanceof FixnumVal)
+			return Long.compare(((FixnumVal) a).val,((FixnumVal) b).val);
+		if(a instanceof FlonumVal && b instanceof FlonumVal)
+			return compare(((FlonumVal) a).val,((FlonumVal) b).val);
+		if(!a.isExact() && !b.isExact())
+			return compare(a.doubleValue(),b.doubleValue());
+		if(!b.isExact())
+			return compareExact(a,b.doubleValue());
+		if(!a.isExact()){
+			int c = compareExact(b,a.doubleValue());
+			return c == UNORDERED ? c : -c;
+		}
+		return a.numerator().multiply(b.denominator()).compareTo(b.numerator().multiply(a.denominator()));
+	}
+
+	static int compare(double x, double y){
+		if(x < y)
+			return -1;
+		if(x > y)
+			return 1;
+		if(x == y)
+			return 0;
+		return UNORDERED;
+	}
+
+	//a against y, with the denominator of a multiplied out.
+	static int compareExact(NumberVal a, double y){
+		if(Double.isNaN(y))
+			return UNORDERED;
+		if(Double.isInfinite(y))
+			return y > 0 ? -1 : 1;
+		return new BigDecimal(a.numerator()).compareTo(new BigDecimal(y).multiply(new BigDecimal(a.denominator())));
+	}
+}
+
+class FixnumVal extends NumberVal{
+	final long val;
+
+	FixnumVal(long val){
+		this.val = val;
+	}
+
+	boolean isExact(){
+		return true;
+	}
+
+	boolean isInteger(){
+		return true;
+	}
+
+	BigInteger numerator(){
+		return BigInteger.valueOf(val);
+	}
+
+	double doubleValue(){
 		return val;
 	}
 
+	public String toString(){
+		return Long.toString(val);
+	}
+
+	public boolean equals(Object e){
+		if(e instanceof FixnumVal && ((FixnumVal) e).val == val)
+			return true;
+		else
+			return false;
+	}
+
+	public int hashCode(){
+		return Long.hashCode(val);
+	}
+}
+
+class BignumVal extends NumberVal{
+	final BigInteger val;
+
+	BignumVal(BigInteger val){
+		this.val = val;
+	}
+
+	boolean isExact(){
+		return true;
+	}
+
+	boolean isInteger(){
+		return true;
+	}
+
+	BigInteger numerator(){
+		return val;
+	}
+
+	double doubleValue(){
+		return val.doubleValue();
+	}
+
 	public String toString(){
 		return val.toString();
 	}
 
 	public boolean equals(Object e){
-		if(e instanceof NumberVal && ((NumberVal)e).getVal().equals(this.val))
+		if(e instanceof BignumVal && ((BignumVal) e).val.equals(val))
+			return true;
+		else
+			return false;
+	}
+
+	public int hashCode(){
+		return val.hashCode();
+	}
+}
+
+//An exact fraction in lowest terms with a denominator above one, made
+//by NumberVal.valueOf(num,den).
+class RatnumVal extends NumberVal{
+	final BigInteger num;
+	final BigInteger den;
+
+	RatnumVal(BigInteger num, BigInteger den){
+		this.num = num;
+		this.den = den;
+	}
+
+	boolean isExact(){
+		return true;
+	}
+
+	boolean isInteger(){
+		return false;
+	}
+
+	BigInteger numerator(){
+		return num;
+	}
+
+	BigInteger denominator(){
+		return den;
+	}
+
+	double doubleValue(){
+		return new BigDecimal(num).divide(new BigDecimal(den),MathContext.DECIMAL128).doubleValue();
+	}
+
+	public String toString(){
+		return num.toString().concat("/").concat(den.toString());
+	}
+
+	public boolean equals(Object e){
+		if(e instanceof RatnumVal && ((RatnumVal) e).num.equals(num) && ((RatnumVal) e).den.equals(den))
+			return true;
+		else
+			return false;
+	}
+
+	public int hashCode(){
+		return num.hashCode() * 31 + den.hashCode();
+	}
+}
+
+class FlonumVal extends NumberVal{
+	final double val;
+
+	FlonumVal(double val){
+		this.val = val;
+	}
+
+	boolean isExact(){
+		return false;
+	}
+
+	boolean isInteger(){
+		return false;
+	}
+
+	BigInteger numerator(){
+		throw new ArithmeticException("Expected an exact number but got ".concat(toString()).concat("."));
+	}
+
+	double doubleValue(){
+		return val;
+	}
+
+	public String toString(){
+		return Double.toString(val);
+	}
+
+	public boolean equals(Object e){
+		if(e instanceof FlonumVal && Double.compare(((FlonumVal) e).val,val) == 0)
 			return true;
 		else
 			return false;
 	}
+
+	public int hashCode(){
+		return Double.hashCode(val);
+	}
 }
 
 class StringVal extends Atom{
@@ -171,13 +594,32 @@ class StringVal extends Atom{
 			return false;
 	}
 
+	public int hashCode(){
+		return val.hashCode();
+	}
+
 }
 
+//Symbols are interned, there is only ever one SymbolVal for a name so
+//they can be compared with == and hashed without looking at the name.
 class SymbolVal extends Atom{
-	String identifier;
+	static final ConcurrentHashMap<String,SymbolVal> table = new ConcurrentHashMap<String,SymbolVal>();
+
+	final String identifier;
+	final int hash;
 
-	SymbolVal(String ident){
+	private SymbolVal(String ident){
 		identifier = ident;
+		hash = ident.hashCode();
+	}
+
+	static SymbolVal intern(String ident){
+		SymbolVal sym = table.get(ident);
+		if(sym != null)
+			return sym;
+		sym = new SymbolVal(ident);
+		SymbolVal existing = table.putIfAbsent(ident,sym);
+		return existing != null ? existing : sym;
 	}
 
 	String getIdentifier(){
@@ -186,17 +628,12 @@ class SymbolVal extends Atom{
 
 	@Override
 	public boolean equals(Object key){
-		if(key instanceof SymbolVal){
-			SymbolVal keySym = (SymbolVal) key;
-			if(keySym.getIdentifier().equals(this.identifier))
-				return true;
-		}
-		return false;
+		return key == this;
 	}
 
 	@Override
 	public int hashCode() {
-		return identifier.hashCode();
+		return hash;
 	}
 
 	public String toString(){
@@ -204,13 +641,22 @@ class SymbolVal extends Atom{
 	}
 }
 
+//There are only two BooleanVals, so a value is true exactly when it is
+//BooleanVal.TRUE.
 class BooleanVal extends Atom{
-	boolean val;
+	static final BooleanVal TRUE = new BooleanVal(true);
+	static final BooleanVal FALSE = new BooleanVal(false);
 
-	BooleanVal(Boolean val){
+	final boolean val;
+
+	private BooleanVal(boolean val){
 		this.val = val;
 	}
 
+	static BooleanVal valueOf(boolean val){
+		return val ? TRUE : FALSE;
+	}
+
 	boolean getVal(){
 		return val;
 	}
@@ -225,6 +671,10 @@ class BooleanVal extends Atom{
 		else
 			return false;
 	}
+
+	public int hashCode(){
+		return val ? 1231 : 1237;
+	}
 }
 
 class Thunk extends Atom{
@@ -257,7 +707,102 @@ class Thunk extends Atom{
 
 }
 
+//Code that has already been analyzed or compiled. Executing a node
+//returns its value, or a Thunk when it ends in a tail call.
+abstract class Node extends Atom{
+	Node(){}
+
+	abstract Expression execute(Environment env) throws Exception;
+
+	public boolean equals(Object e){
+		if(e == this)
+			return true;
+		else
+			return false;
+	}
+}
+
+//A reference to a lambda argument that the Analyzer has resolved
+//to a frame depth and slot, so it can be found without hashing.
+class LocalRef extends Node{
+	SymbolVal name;
+	int depth;
+	int slot;
+
+	LocalRef(SymbolVal name, int depth, int slot){
+		this.name = name;
+		this.depth = depth;
+		this.slot = slot;
+	}
+
+	SymbolVal getName(){
+		return name;
+	}
+
+	Expression lookUp(Environment env) throws Exception{
+		Environment frame = env;
+		for(int i = 0; i < depth && frame != null; i++)
+			frame = frame.getParent();
+
+		Expression val = frame == null ? null : frame.getSlot(slot,name);
+
+		//Unbound arguments (a call with no args) and frames that
+		//don't look like the analyzer expected use a normal lookup.
+		if(val == null)
+			val = env.lookUp(name);
+		if(val == null)
+			throw new Exception("Symbol ".concat(name.getIdentifier()).concat(" is undefined."));
+		return val;
+	}
+
+	Expression execute(Environment env) throws Exception{
+		return lookUp(env);
+	}
+
+	public String toString(){
+		return name.toString();
+	}
+
+	public boolean equals(Object e){
+		if(e instanceof LocalRef && ((LocalRef) e).getName().equals(name))
+			return true;
+		else
+			return false;
+	}
+}
+
+//A lambda expression whose body has already been analyzed.
+//Evaluating it just closes over the current environment. source is the
+//body as it was read.
+class LambdaForm extends Node{
+	Params params;
+	Expression exp;
+	Expression source;
+
+	LambdaForm(Params params, Expression exp, Expression source){
+		this.params = params;
+		this.exp = exp;
+		this.source = source;
+	}
+
+	Lambda makeLambda(Environment env){
+		return new Lambda(env,params,exp,source);
+	}
+
+	Expression execute(Environment env){
+		return makeLambda(env);
+	}
+
+	public String toString(){
+		return Printer.toString(this);
+	}
+}
+
 class Pair extends Expression{
+	//The empty list. Lists built anywhere in the runtime end in this
+	//one, nothing may set its car or cdr.
+	static final Pair NIL = new Pair(null,null);
+
 	Expression car;
 	Expression cdr;
 
@@ -283,10 +828,7 @@ class Pair extends Expression{
 	}
 
 	public String toString(){
-		if(this.isNil())
-			return "(list)";
-		else
-			return "(cons ".concat(car.toString()).concat(" ").concat(cdr.toString()).concat(")");
+		return Printer.toString(this);
 	}
 
 	public boolean equals(Object e){
@@ -320,6 +862,9 @@ abstract class ProcedureVal extends Atom{
 
 //look at using anonymous classes for these
 abstract class JavaFunction extends ProcedureVal{
+	//what the library binds it to, set by CoreLispLib
+	String name;
+
 	JavaFunction(){}
 	abstract Expression call(Expression args) throws Exception;
 
@@ -336,31 +881,128 @@ abstract class JavaFunction extends ProcedureVal{
 }
 
 
+//A builtin that takes two arguments. Compiled code calls it without
+//making a list of them. It never returns a Thunk.
+abstract class BinaryFunction extends JavaFunction{
+
+	BinaryFunction(){}
+	abstract Expression call(Expression a, Expression b) throws Exception;
+
+	Expression call(Expression args) throws Exception{
+		Pair list = (Pair) args;
+		return call(list.getCar(),((Pair) list.getCdr()).getCar());
+	}
+}
+
+//The arguments a lambda takes. (lambda x ...) and (lambda (x) ...) take
+//one, (lambda (a b) ...) takes two and (lambda (a . rest) ...) takes one
+//or more with the extra ones bound to rest as a list. A call binds all of
+//them in one frame, in the order of slots.
+class Params{
+	static final Params NONE = new Params(new SymbolVal[0],null);
+
+	SymbolVal[] args;
+	SymbolVal rest;
+	SymbolVal[] slots;
+
+	Params(SymbolVal[] args, SymbolVal rest){
+		this.args = args;
+		this.rest = rest;
+		if(rest == null){
+			slots = args;
+		}else{
+			slots = Arrays.copyOf(args,args.length + 1);
+			slots[args.length] = rest;
+		}
+	}
+
+	//The arguments in spec, or null if it isn't a symbol, nil or a list
+	//of symbols.
+	static Params parse(Expression spec){
+		if(spec == null)
+			return null;
+		if(spec.isSymbol())
+			return new Params(new SymbolVal[]{(SymbolVal) spec},null);
+		if(spec.isNil())
+			return NONE;
+		if(!spec.isPair())
+			return null;
+
+		ArrayList<SymbolVal> args = new ArrayList<SymbolVal>();
+		SymbolVal rest = null;
+		Expression list = spec;
+		while(list.isPair()){
+			Expression name = ((Pair) list).getCar();
+			if(name == null || !name.isSymbol())
+				return null;
+			if(((SymbolVal) name).getIdentifier().equals(".")){
+				Expression tail = ((Pair) list).getCdr();
+				if(	!tail.isPair() ||
+					((Pair) tail).getCar() == null ||
+					!((Pair) tail).getCar().isSymbol() ||
+					!((Pair) tail).getCdr().isNil())
+					return null;
+				rest = (SymbolVal) ((Pair) tail).getCar();
+				break;
+			}
+			args.add((SymbolVal) name);
+			list = ((Pair) list).getCdr();
+		}
+		return new Params(args.toArray(new SymbolVal[args.size()]),rest);
+	}
+
+	//Calls with more arguments than this are curried.
+	boolean takes(int count){
+		return count <= args.length || rest != null;
+	}
+
+	public String toString(){
+		if(args.length == 1 && rest == null)
+			return args[0].getIdentifier();
+		StringBuilder builder = new StringBuilder("(");
+		for(int i = 0; i < args.length; i++){
+			if(i > 0)
+				builder.append(" ");
+			builder.append(args[i].getIdentifier());
+		}
+		if(rest != null)
+			builder.append(args.length > 0 ? " . " : ". ").append(rest.getIdentifier());
+		return builder.append(")").toString();
+	}
+}
+
 class Lambda extends ProcedureVal {
 	Environment closure;
-	SymbolVal arg;
+	Params params;
 	Expression exp;
+	//the body before it was analyzed or compiled, for snapshots
+	Expression source;
+	//source analyzed for a Machine, if exp was compiled
+	Expression analyzed;
 
-	Lambda(Environment closure, SymbolVal arg, Expression exp){
+	Lambda(Environment closure, Params params, Expression exp, Expression source){
 		this.closure = closure;
-		this.arg = arg;
+		this.params = params;
 		this.exp = exp;
+		this.source = source;
+		if(closure != null)
+			for(SymbolVal name : params.slots)
+				closure.addLocalName(name);
 	}
 	
 	Lambda(Expression exp, Environment env){
 		try{
-			closure = new Environment(env);
+			closure = env;
 			if(exp.isList()){
 				Expression car = ((Pair) exp).getCar();
 				Expression cdr = ((Pair) exp).getCdr();
-				if(car.isSymbol()){
-					arg = (SymbolVal) car;
-				}else if(car.isNil()){
-					arg = null;
-				}else{
-					throw new Exception("Lambda expects the first argument to be a symbol or nil.");
-				}
-				this.exp = ((Pair)cdr).getCar();
+				params = Params.parse(car);
+				if(params == null)
+					throw new Exception("Lambda expects the first argument to be a symbol, nil or a list of symbols.");
+				for(SymbolVal name : params.slots)
+					env.addLocalName(name);
+				this.source = ((Pair)cdr).getCar();
+				this.exp = Analyzer.analyzeBody(params,source,env);
 			}else{
 				throw new Exception("Lambda arguments in an unexpected form.");
 			}
@@ -374,8 +1016,8 @@ class Lambda extends ProcedureVal {
 		return closure;
 	}
 
-	SymbolVal getArg(){
-		return arg;
+	Params getParams(){
+		return params;
 	}
 
 	Expression getExp(){
@@ -383,17 +1025,66 @@ class Lambda extends ProcedureVal {
 	}
 
 	Environment getEvalEnvironment(Expression val, Environment env){
-		Environment newEnv = new Environment(env);
-		newEnv.concat(closure);
-		if(arg != null)
-			newEnv.add(arg,val);
+		return getEvalEnvironment(new Expression[]{val},0,1,env);
+	}
+
+	//A frame binding all of vals, which is cleared once they have been
+	//copied. A call that runs the body from where it is, passing this
+	//straight to Evaluator.callBody, keeps nothing on its Java frame
+	//that the body lets go of while it runs.
+	Environment bindAll(Expression[] vals, Environment env){
+		Environment newEnv = getEvalEnvironment(vals,0,vals.length,env);
+		Arrays.fill(vals,null);
+		return newEnv;
+	}
+
+	//A frame binding the count arguments in vals from start. The lambda
+	//must take that many, see Params.takes.
+	Environment getEvalEnvironment(Expression[] vals, int start, int count, Environment env){
+		SymbolVal[] slots = params.slots;
+
+		//The caller is only searched after the closure, so frames of
+		//the caller that the new frame hides completely can be skipped.
+		//This keeps recursive calls from building up long caller chains.
+		Environment caller = env;
+		if(count >= params.args.length)
+			while(caller != null && caller != closure && caller.getParent() == closure && caller.onlyBinds(slots))
+				caller = caller.getCaller();
+		if(caller == closure)
+			caller = null;
+		if(caller != null && caller.depth > Environment.MAX_CALLER_DEPTH)
+			caller = caller.flatten(closure);
+
+		Environment newEnv = new Environment(closure,caller);
+		Expression[] values = newEnv.bindSlots(slots);
+		int n = Math.min(count,params.args.length);
+		System.arraycopy(vals,start,values,0,n);
+		if(params.rest != null){
+			Pair rest = Pair.NIL;
+			for(int i = start + count - 1; i >= start + n; i--)
+				rest = new Pair(vals[i],rest);
+			values[params.args.length] = rest;
+		}
 		return newEnv;
 	}
 
+	//The body the way the interpreter runs it. A Machine can only stop
+	//between steps of a body it interprets, so one compiled by another
+	//mode is analyzed again from its source.
+	Expression getInterpretedExp(){
+		if(	!(exp instanceof Node) ||
+			exp instanceof LocalRef ||
+			exp instanceof LambdaForm ||
+			exp instanceof ConstantNode ||
+			source == null)
+			return exp;
+		if(analyzed == null)
+			analyzed = Analyzer.analyzeBody(params,source,closure);
+		return analyzed;
+	}
+
 	public String toString(){
-		StringWriter w = new StringWriter();
-		Printer.printExpression(exp,w);
-		return "<lambda arg=".concat(arg.getIdentifier()).concat(" exp=").concat(w.toString()).concat(">");
+		return Printer.toString(this);
 	}
 
 	public boolean equals(Object e){
@@ -411,6 +1102,7 @@ class Port extends Atom{
 	//output.
 	Reader input;
 	Writer output;
+	Lexer lexer;
 
 	Port(){
 		input = null;
@@ -418,19 +1110,32 @@ class Port extends Atom{
 	}
 
 	Port(Reader input, Writer output){
-		//Input must be buffered so that peek() in parseSexp() will work.
-		//If it is not (read) will not work. Output is left unbuffered
-		//for now I don't see a need to buffer it. If it's buffered it
-		//might lead to a bunch of annoying things like having to flush
-		//the buffer to get stuff to write.
+		//(read) goes through the port's Lexer, which reads the input in
+		//blocks, so the reader is only buffered for whoever reads it
+		//directly. Output is buffered, see PortWriter, fully unless it
+		//comes with a policy of its own.
 		this.input = input==null ? null : new BufferedReader(input);
-		this.output = output;
+		this.output = output == null || output instanceof PortWriter ? output : new PortWriter(output,PortWriter.FULL);
+	}
+
+	//An input port that parses straight from a Lexer, such as one over a
+	//mapped file.
+	Port(Lexer lexer){
+		this.lexer = lexer;
 	}
 	
 	Reader getInput(){
 		return input;
 	}
 
+	//Parsing from a port always goes through this Lexer so input it has
+	//buffered isn't lost between reads.
+	Lexer getLexer(){
+		if(lexer == null && input != null)
+			lexer = new Lexer(input);
+		return lexer;
+	}
+
 	Writer getOutput(){
 		return output;
 	}
@@ -448,7 +1153,9 @@ class Port extends Atom{
 }
 
 class EofVal extends Atom{
-	EofVal(){}
+	static final EofVal EOF = new EofVal();
+
+	private EofVal(){}
 
 	public String toString(){
 		return "<eof>";
@@ -460,35 +1167,322 @@ class EofVal extends Atom{
 		else
 			return false;
 	}
+
+	public int hashCode(){
+		return 1249;
+	}
 }
 
 
+//What a top level frame keeps for the frames under it. Every name that
+//has been bound in one of them is in localNames, a name that isn't can
+//only be bound at the top level, so its value can be cached against
+//the top level frame until version changes. Kept per top level frame
+//so interpreters don't invalidate each other's caches, and the names go
+//away with the interpreter.
+class TopLevel{
+	//Bumped on every change to the top level frame and whenever a name
+	//is first bound under it, after the change so a GlobalRef that reads
+	//the new version finds the new binding. Atomic because the pool's
+	//threads share the template's top level.
+	final AtomicInteger version = new AtomicInteger();
+	final Set<SymbolVal> localNames = ConcurrentHashMap.newKeySet();
+}
+
+//Environments are linked frames instead of full copies. A frame holds
+//its own bindings and points at the closure it was created in (parent)
+//and at the environment it was called from (caller). Looking a symbol
+//up searches the frame, then everything visible from the parent, then
+//everything visible from the caller, which is the same precedence the
+//old copy-and-concat environments had: arg > closure > caller.
 class Environment extends Atom{
+	//Frames this small are searched linearly, bigger ones get a map.
+	static final int SMALL_FRAME = 8;
+
+	//Callers further away than this get flattened into one frame,
+	//otherwise loops that go through more than one lambda would keep
+	//every frame they ever made alive.
+	static final int MAX_CALLER_DEPTH = 16;
+
+	//Stamps used to avoid searching the same frame twice when a
+	//lookup has to fall back on caller frames.
+	static final AtomicInteger searchStamps = new AtomicInteger();
+
+	SymbolVal[] names;
+	Expression[] values;
+	int size;
 	Map<SymbolVal,Expression> map;
+	//set while map is shared with another frame, see copyOnWrite
+	boolean sharedMap;
+
+	Environment parent;
+	Environment caller;
+	Environment root;
+	int depth;
+	int stamp;
+
+	//only set on a top level frame
+	TopLevel top;
 
 	Environment(){
-		this.map = new HashMap<SymbolVal,Expression>();
+		this(null,null);
+	}
+
+	Environment(Environment parent){
+		this(parent,null);
+	}
+
+	Environment(Environment parent, Environment caller){
+		this.parent = parent;
+		this.caller = caller;
+		this.root = parent == null ? this : parent.root;
+		if(parent == null)
+			this.top = new TopLevel();
+		if(parent != null || caller != null){
+			int parentDepth = parent == null ? 0 : parent.depth;
+			int callerDepth = caller == null ? 0 : caller.depth;
+			this.depth = 1 + Math.max(parentDepth,callerDepth);
+		}
+	}
+
+	Environment getParent(){
+		return parent;
+	}
+
+	Environment getCaller(){
+		return caller;
+	}
+
+	Environment getRoot(){
+		return root;
 	}
 
-	Environment(Environment e){
-		this.map = new HashMap<SymbolVal,Expression>(e.getMap());
+	int getVersion(){
+		return root.top.version.get();
 	}
 
+	//Records that name is bound in a frame under this one's top level
+	//frame, see TopLevel.
+	void addLocalName(SymbolVal name){
+		TopLevel top = root.top;
+		if(top.localNames.add(name))
+			top.version.incrementAndGet();
+	}
+
+	boolean isLocalName(SymbolVal name){
+		return root.top.localNames.contains(name);
+	}
+
+	//Only the bindings made in this frame.
 	Map<SymbolVal,Expression> getMap(){
-		return map;
+		Map<SymbolVal,Expression> result = new HashMap<SymbolVal,Expression>();
+		for(int i = 0; i < size; i++)
+			result.put(names[i],values[i]);
+		if(map != null)
+			result.putAll(map);
+		return result;
+	}
+
+	int frameSize(){
+		return map != null ? size + map.size() : size;
+	}
+
+	//True if every binding in this frame is for one of keys. Used to
+	//drop frames that a new frame would completely shadow.
+	boolean onlyBinds(SymbolVal[] keys){
+		if(map != null)
+			return false;
+		if(names == keys)
+			return true;
+		for(int i = 0; i < size; i++){
+			boolean found = false;
+			for(int j = 0; j < keys.length && !found; j++)
+				found = names[i].equals(keys[j]);
+			if(!found)
+				return false;
+		}
+		return true;
+	}
+
+	//The value in slot if it is bound to name, otherwise null.
+	Expression getSlot(int slot, SymbolVal name){
+		if(slot < size && names[slot] == name)
+			return values[slot];
+		return null;
 	}
 
 	void add(SymbolVal key, Expression value){
-		this.map.put(key,value);
+		if(parent != null)
+			addLocalName(key);
+		bind(key,value);
+		if(parent == null)
+			top.version.incrementAndGet();
+	}
+
+	//Makes names the slots of this empty frame and returns the array
+	//their values go in. The names array is shared with the Lambda, a
+	//later bind copies it before adding to it.
+	Expression[] bindSlots(SymbolVal[] slots){
+		names = slots;
+		values = new Expression[slots.length];
+		size = slots.length;
+		return values;
+	}
+
+	//A new top level frame with the same bindings as this one. The map
+	//is shared until either frame binds something, so copying a big top
+	//level costs next to nothing.
+	Environment copyOnWrite(){
+		Environment copy = new Environment();
+		for(int i = 0; i < size; i++)
+			copy.bind(names[i],values[i]);
+		if(map != null){
+			copy.map = map;
+			copy.sharedMap = true;
+			sharedMap = true;
+		}
+		return copy;
 	}
 
+	//Adds a binding without recording the name. Lambdas record their
+	//argument when they are made so binding it on each call is cheap.
+	void bind(SymbolVal key, Expression value){
+		if(sharedMap){
+			map = new HashMap<SymbolVal,Expression>(map);
+			sharedMap = false;
+		}
+		if(map != null && map.containsKey(key)){
+			map.put(key,value);
+			return;
+		}
+		for(int i = 0; i < size; i++){
+			if(names[i].equals(key)){
+				values[i] = value;
+				return;
+			}
+		}
+		//Arguments are always in the first slots so they stay in the
+		//arrays where a LocalRef can index them, anything past that
+		//goes in a map. Top level frames have no arguments and are
+		//usually big so they only use the map.
+		if(size >= SMALL_FRAME || parent == null){
+			if(map == null)
+				map = new HashMap<SymbolVal,Expression>();
+			map.put(key,value);
+			return;
+		}
+		if(names == null){
+			names = new SymbolVal[2];
+			values = new Expression[2];
+		}else if(size == names.length){
+			names = Arrays.copyOf(names,Math.max(2,size * 2));
+			values = Arrays.copyOf(values,Math.max(2,size * 2));
+		}
+		names[size] = key;
+		values[size] = value;
+		size++;
+	}
+
+	//Copies the bindings made in env's own frame into this frame.
 	void concat(Environment env){
-		this.map.putAll(env.getMap());
+		for(int i = 0; i < env.size; i++)
+			add(env.names[i],env.values[i]);
+		if(env.map != null){
+			for(Map.Entry<SymbolVal,Expression> entry : env.map.entrySet())
+				add(entry.getKey(),entry.getValue());
+		}
+	}
+
+	Expression lookUpFrame(SymbolVal key){
+		for(int i = 0; i < size; i++)
+			if(names[i].equals(key))
+				return values[i];
+		if(map != null)
+			return map.get(key);
+		return null;
+	}
+
+	//Marks every frame a lookup from here would search.
+	void mark(int searchStamp){
+		ArrayDeque<Environment> callers = new ArrayDeque<Environment>();
+		callers.push(this);
+		while(!callers.isEmpty()){
+			Environment e = callers.pop();
+			while(e != null && e.stamp != searchStamp){
+				e.stamp = searchStamp;
+				if(e.caller != null)
+					callers.push(e.caller);
+				e = e.parent;
+			}
+		}
+	}
+
+	//A single frame holding everything visible from here that isn't
+	//already visible from closure. A frame that searches closure before
+	//this one finds the same bindings through the flattened frame.
+	Environment flatten(Environment closure){
+		int shadowed = searchStamps.incrementAndGet();
+		if(closure != null)
+			closure.mark(shadowed);
+
+		int searchStamp = searchStamps.incrementAndGet();
+		Environment flat = new Environment();
+		ArrayDeque<Environment> callers = new ArrayDeque<Environment>();
+		callers.push(this);
+		while(!callers.isEmpty()){
+			Environment e = callers.pop();
+			while(e != null && e.stamp != shadowed && e.stamp != searchStamp){
+				e.stamp = searchStamp;
+				for(int i = 0; i < e.size; i++)
+					if(e.values[i] != null && flat.lookUpFrame(e.names[i]) == null)
+						flat.add(e.names[i],e.values[i]);
+				if(e.map != null)
+					for(Map.Entry<SymbolVal,Expression> entry : e.map.entrySet())
+						if(entry.getValue() != null && flat.lookUpFrame(entry.getKey()) == null)
+							flat.add(entry.getKey(),entry.getValue());
+				if(e.caller != null)
+					callers.push(e.caller);
+				e = e.parent;
+			}
+		}
+		return flat;
 	}
 
 	Expression lookUp(SymbolVal val) throws Exception{
-		Expression result = map.get(val);
-		return result;
+		//Walk the parent chain first, remembering the callers we pass.
+		//Most lookups end on this first walk so nothing gets allocated.
+		ArrayDeque<Environment> callers = null;
+		Environment e = this;
+		while(e != null){
+			Expression result = e.lookUpFrame(val);
+			if(result != null)
+				return result;
+			if(e.caller != null){
+				if(callers == null)
+					callers = new ArrayDeque<Environment>();
+				callers.push(e.caller);
+			}
+			e = e.parent;
+		}
+		if(callers == null)
+			return null;
+
+		//Frames can be reached through more than one caller so mark the
+		//ones already searched to keep misses linear.
+		int searchStamp = searchStamps.incrementAndGet();
+		while(!callers.isEmpty()){
+			e = callers.pop();
+			while(e != null && e.stamp != searchStamp){
+				e.stamp = searchStamp;
+				Expression result = e.lookUpFrame(val);
+				if(result != null)
+					return result;
+				if(e.caller != null)
+					callers.push(e.caller);
+				e = e.parent;
+			}
+		}
+		return null;
 	}
 
 	public String toString(){
@@ -504,26 +1498,83 @@ class Environment extends Atom{
 
 }
 
+//How forms are run and whether they're traced is up to the Context of
+//the interpreter running them.
 class Evaluator{
-	static boolean debug = false;
 
 	Evaluator(){}
 
-	public static Expression trampoline(Expression thunk) throws Exception{
+	//Prints a debug trace to the current output port, or to stdout if
+	//there isn't one.
+	static void trace(String what, Expression exp) throws Exception{
+		Port port = Context.current().output;
+		Writer writer = port != null && port.getOutput() != null ? port.getOutput() : new OutputStreamWriter(System.out);
+		writer.write(what);
+		Printer.printExpression(exp,writer);
+		writer.write("\n");
+		writer.flush();
+	}
+
+	//Runs result until it's a value. A call that isn't in tail position
+	//runs its body in a trampoline of its own on top of the caller's, so
+	//the trampolines running thunks are counted, and more than the
+	//Context's maxDepth of them is an error rather than a Java stack
+	//overflow. Running out of Java stack before that is turned into the
+	//same kind of error by the Vole that was running, see outOfStack.
+	public static Expression trampoline(Expression result) throws Exception{
+		if(result == null || !result.isThunk())
+			return result;
+
+		Context context = Context.current();
+		if(context.depth >= context.maxDepth)
+			throw tooDeep(context);
+		context.depth++;
+		try{
+			//Only result may refer to the thunk being run, so a Thunk that
+			//has been run can be collected along with its environment.
+			while(result != null && result.isThunk())
+				result = bounce((Thunk) result,context);
+			return result;
+		}finally{
+			context.depth--;
+		}
+	}
+
+	//Runs the body of a lambda that compiled code calls outside of tail
+	//position, without making a Thunk of it. It counts against maxDepth
+	//the same as a trampoline.
+	static Expression callBody(Expression exp, Environment env) throws Exception{
+		Context context = Context.current();
+		if(context.depth >= context.maxDepth)
+			throw tooDeep(context);
+		context.depth++;
+		try{
+			Expression result = eval_tramp(exp,env);
+			//A body that makes a tail call is done with env, don't keep
+			//it for as long as the call runs.
+			env = null;
+			while(result != null && result.isThunk())
+				result = bounce((Thunk) result,context);
+			return result;
+		}finally{
+			context.depth--;
+		}
+	}
+
+	static Expression bounce(Thunk thunk, Context context) throws Exception{
+		if(Context.debugging())
+			trace("Boing!: ",thunk.getExp());
+		if(Scheduler.live.get() > 0)
+			Scheduler.tick(context);
+		return eval_tramp(thunk.getExp(),thunk.getEnv());
+	}
 
-		Expression result = thunk;
-		while(result != null && result.isThunk()){
-			if(debug){
-				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out));
-				System.out.print("Boing!: ");
-				Printer.printExpression(((Thunk)result).getExp(),writer);
-				writer.flush();
-				System.out.println();
-			}
+	static Exception tooDeep(Context context){
+		return new Exception("Calls nested more than ".concat(Integer.toString(context.maxDepth)).concat(" deep."));
+	}
 
-			result = eval_tramp(((Thunk)result).getExp(),((Thunk)result).getEnv());
-		}
-		return result;
+	static Exception outOfStack(Context context){
+		return new Exception("Ran out of Java stack before calls were nested ".concat(Integer.toString(context.maxDepth)).concat(" deep, run with a bigger -Xss or a smaller vole.max.depth."));
 	}
 
 	public static Expression apply(Expression fn, Expression args, Environment env) throws Exception{
@@ -531,23 +1582,25 @@ class Evaluator{
 	}
 
 	public static Expression apply_tramp(Expression fn, Expression args, Environment env) throws Exception {
-		if(debug){
-			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out));
-			System.out.print("apply() called on:\t");
-			Printer.printExpression(new Pair(fn,args),writer);
-			writer.flush();
-			System.out.println();
-		}
+		if(Context.debugging())
+			trace("apply() called on:\t",new Pair(fn,args));
 
 		if(fn.isLambda()){
 			Lambda lambda = (Lambda) fn;
-			//((<lambda> first-arg) rest-args)
-			if(args.isList() && !((Pair) args).getCdr().isNil()) {
-				return new Thunk( new Pair( new Pair( lambda, new Pair( ((Pair) args).getCar(), new Pair(null,null))), ((Pair) args).getCdr()),env);
-			}else{
-				Environment lambdaEnv = lambda.getEvalEnvironment(((Pair)args).getCar(),env);
-				return new Thunk(lambda.getExp(),lambdaEnv);
-			}
+			Expression[] vals = toArray(args);
+			Params params = lambda.getParams();
+			if(params.takes(vals.length))
+				return new Thunk(lambda.getExp(),lambda.getEvalEnvironment(vals,0,vals.length,env));
+
+			//((<lambda> first-args) rest-args)
+			int n = params.args.length;
+			Expression result = trampoline(new Thunk(lambda.getExp(),lambda.getEvalEnvironment(vals,0,n,env)));
+			Expression rest = args;
+			for(int i = 0; i < n; i++)
+				rest = ((Pair) rest).getCdr();
+			return apply_tramp(result,rest,env);
+		}else if(fn == Machine.CALL_CC){
+			return Machine.callCC(args,env);
 		}else if(fn.isJavaFunction()){
 			JavaFunction jfunc = (JavaFunction) fn;
 			return jfunc.call(args);
@@ -567,23 +1620,28 @@ class Evaluator{
 	}
 
 	public static Expression eval_string(String expString, Environment env) throws Exception{
-		Expression exp = Parser.parseSexp(new StringReader(expString));
+		Expression exp = Parser.parseSexp(new Lexer(expString));
 		return eval(exp,env);
 	}
 
 	public static Expression eval_tramp(Expression exp, Environment env) throws Exception{
 
-		if(debug){
-			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out));
-			System.out.print("eval() called on:\t");
-			Printer.printExpression(exp,writer);
-			writer.flush();
-			System.out.println();
-		}
+		if(Context.debugging())
+			trace("eval() called on:\t",exp);
 
 		if(exp == null)
 			return exp;
 
+		if(exp.isSymbol() || exp.isPair()){
+			Vole.Mode mode = Context.mode();
+			if(mode == Vole.Mode.CEK)
+				return Machine.eval(exp,env);
+			else if(mode == Vole.Mode.BYTECODE)
+				return BytecodeCompiler.compile(exp,env).execute(env);
+			else if(mode != Vole.Mode.INTERPRETED)
+				return Compiler.compile(exp,env).execute(env);
+		}
+
 		if(exp.isAtom()){
 			if(exp.isSymbol()){
 				Expression val = env.lookUp((SymbolVal) exp);
@@ -591,6 +1649,8 @@ class Evaluator{
 					return val;
 				else
 					throw new Exception("Symbol ".concat(((SymbolVal) exp).getIdentifier()).concat(" is undefined."));
+			}else if(exp.isNode()){
+				return ((Node) exp).execute(env);
 			}else{
 				return exp;
 			}
@@ -614,7 +1674,7 @@ class Evaluator{
 						//there is no possible way this is a tail call
 						Expression a = trampoline(eval_tramp(list.getCar(),env));
 						Expression resultThunkExp;
-						if(a.isBoolean() && ((BooleanVal)a).getVal() == true)
+						if(a == BooleanVal.TRUE)
 							resultThunkExp = ((Pair)list.getCdr()).getCar();
 						else
 							resultThunkExp = ((Pair)((Pair) list.getCdr()).getCdr()).getCar();
@@ -651,16 +1711,21 @@ class Evaluator{
 							throw new Exception("(load _) expects a filename as the first argument.");
 						load(filename,env);
 						return null;
+					}else if(sym.getIdentifier().equals("load-all")){
+						String[] filenames = Loader.filenames(cdr);
+						if(filenames == null)
+							throw new Exception("(load-all _ ...) expects filenames as arguments.");
+						Loader.loadAll(filenames,env);
+						return null;
 					}else if(sym.getIdentifier().equals("toggle-debug")){
-						debug = debug ? false : true;
-						return new BooleanVal(debug);
+						return BooleanVal.valueOf(Context.current().toggleDebug());
 
 					}else{
 						throw new Exception("Undefined symbol: ".concat(car.toString()));
 					}
 				}
 				//(<fn> args)
-				return apply_tramp(car,evlis(cdr,env), env);
+				return apply_tramp(eval_tramp(car,env),evlis(cdr,env), env);
 			}
 			//((stuff) args ...)
 			return apply_tramp(trampoline(eval_tramp(car,env)),evlis(cdr,env), env);
@@ -671,300 +1736,327 @@ class Evaluator{
 
 	}
 
+	static Expression[] toArray(Expression list){
+		int count = 0;
+		for(Expression e = list; e.isPair(); e = ((Pair) e).getCdr())
+			count++;
+		Expression[] vals = new Expression[count];
+		Expression e = list;
+		for(int i = 0; i < count; i++){
+			vals[i] = ((Pair) e).getCar();
+			e = ((Pair) e).getCdr();
+		}
+		return vals;
+	}
+
+	//The values of the forms in list, evaluated left to right. A list
+	//that doesn't end in (list) keeps its last cdr as it is.
 	public static Expression evlis(Expression list, Environment env) throws Exception{
-		if(list.isAtom())
-			return list;
-		else{
-			Pair listPair = (Pair) list;
-			if(listPair.isNil())
-				return listPair;
+		Pair head = null;
+		Pair tail = null;
+		while(list.isPair()){
+			Pair pair = new Pair(eval(((Pair) list).getCar(),env),null);
+			if(head == null)
+				head = pair;
 			else
-				return new Pair(eval(listPair.getCar(),env),evlis(listPair.getCdr(),env));
+				tail.setCdr(pair);
+			tail = pair;
+			list = ((Pair) list).getCdr();
 		}
+		if(head == null)
+			return list;
+		tail.setCdr(list);
+		return head;
 	}
 
 	public static void load(String filename, Environment env) throws Exception{
+		String image = filename.endsWith(".fasl") ? filename : Fasl.upToDateImage(filename);
+		load(filename,image == null ? null : Fasl.readFile(image),env);
+	}
+
+	//Loads filename, from image if it's given the contents of an image
+	//of it, see Fasl.
+	static void load(String filename, ByteBuffer image, Environment env) throws Exception{
+		//Forms are expanded as they're loaded, the expansions are kept by
+		//the file's path and contents so loading it again skips that.
+		String source = new File(filename).getAbsolutePath();
+		int position = 0;
+		if(image != null){
+			position = loadImage(image,source,env);
+			if(position < 0)
+				return;
+			if(filename.endsWith(".fasl"))
+				throw new Exception("Image ".concat(filename).concat(" was expanded with other macros, compile it again."));
+		}
 
-		Reader input = new BufferedReader(new FileReader(filename));
-		
-		Expression exp = Parser.parseSexp(input);
-
-		while(exp != null){
-			eval(exp,env);
-			exp = Parser.parseSexp(input);
+		Lexer lexer = Lexer.open(filename);
+		try{
+			//A file too big to map is read through a Reader and its
+			//expansions aren't kept.
+			boolean keep = lexer.bytes != null;
+			long hash = keep ? ExpansionCache.hash(lexer.bytes) : 0;
+			Expression exp = Parser.parseSexp(lexer);
+			//the forms an image was used for
+			for(int i = 0; i < position && exp != null; i++)
+				exp = Parser.parseSexp(lexer);
+
+			while(exp != null){
+				if(keep)
+					exp = Expander.expandLoaded(exp,source,hash,position++);
+				else
+					exp = new Expander(null).expandForm(exp);
+				eval(exp,env);
+				exp = Parser.parseSexp(lexer);
+			}
+		}finally{
+			lexer.close();
 		}
 
 	}
 
-}
-
-class Printer{
-	
-	Printer(){}
-
-	public static void printList(Expression expr, Writer out) throws Exception{
-		if(expr.isList()){
-			Pair p = (Pair) expr;
-			printExpression(p.getCar(),out);
-			if(p.getCdr().isPair() && ! p.getCdr().isNil()){
-				out.write(" ");
-				printList(p.getCdr(),out);
+	//Evaluates the forms of an image until one that was expanded with
+	//other macros than the ones there are now. Returns how many forms
+	//were evaluated, or -1 if that was all of them.
+	static int loadImage(ByteBuffer bytes, String source, Environment env) throws Exception{
+		long hash = ExpansionCache.hash(bytes);
+		Fasl in = Fasl.reader(bytes);
+		Context context = Context.current();
+		//what the macros are if nothing but the image defines any
+		long version = in.macrosVersion;
+		int position = 0;
+		Expression exp = in.next();
+		while(exp != null){
+			if(context.macrosVersion != version)
+				return position;
+			if(!in.expanded){
+				exp = Expander.expandLoaded(exp,source,hash,position);
+				version = context.macrosVersion;
 			}
-		}else{
-			printExpression(expr,out);
+			position++;
+			eval(exp,env);
+			exp = in.next();
 		}
+		return -1;
 	}
 
-	public static void printExpression(Expression expr, Writer out){
-		try{
-			if(expr == null){
-				out.write("<unspecified>");
-				return;
-			}else if(expr.isList()){
-				out.write("(");
-				printList(expr,out);
-				out.write(")");
-				return;
-			}else{
-				out.write(expr.toString());
-			}
+}
 
+//The arguments bound by one lambda while analyzing its body.
+class Scope{
+	SymbolVal[] names;
+	Scope parent;
 
-		}catch(Exception e){
-			e.printStackTrace();
-		}
+	Scope(SymbolVal[] names, Scope parent){
+		this.names = names;
+		this.parent = parent;
 	}
-}
 
-class Parser{
-	Parser(){}
-
-	static int peek(Reader input){
-		int c = 0;
-		try{
-			input.mark(1);
-			c = (char) input.read();
-			input.reset();
-		}catch(Exception e){
-			e.printStackTrace();
-		}
-		return c;
+	int slotOf(SymbolVal name){
+		for(int i = 0; i < names.length; i++)
+			if(names[i].equals(name))
+				return i;
+		return -1;
 	}
+}
 
-	public static BooleanVal parseBoolean(Reader input) throws Exception{
-		input.read();
-		int c = input.read();
-		if(c == 't')
-			return new BooleanVal(true);
-		else if(c == 'f')
-			return new BooleanVal(false);
-		else
-			throw new Exception("Attempted to parse boolean but no boolean to be found.");
-	}
-
-	public static NumberVal parseNumber(Reader input) throws Exception{
-		StringBuilder builder = new StringBuilder();
-		int c = 0;
-
-		c = peek(input);
-		while( 	c != '#' &&
-			c != '(' &&
-			c != ')' &&
-			c != ';' &&
-		(short) c != -1  &&
-			Character.isDigit(c) &&
-			!Character.isWhitespace(c)){
-			
-			builder.append((char) c);
-			input.read();
-			c = peek(input);
-		}
+//Runs over a lambda body once when the lambda is created and replaces
+//references to arguments of enclosing lambdas with LocalRefs. Nested
+//lambda expressions become LambdaForms so they are only analyzed once.
+//Anything else (globals, names bound with define, names only visible
+//from the caller) is left as a symbol and looked up as before.
+class Analyzer{
 
-		Scanner s = new Scanner(builder.toString());
+	Analyzer(){}
 
-		return new NumberVal(s.nextBigInteger());
+	static Expression analyzeBody(Params params, Expression body, Environment env){
+		return analyze(body,scopeFor(params,null),env);
 	}
 
-	public static SymbolVal parseSymbol(Reader input) throws Exception{
-		StringBuilder builder = new StringBuilder();
-		int c = 0;
+	static Scope scopeFor(Params params, Scope parent){
+		return new Scope(params.slots,parent);
+	}
 
-		c = peek(input);
-		while( 	c != '#' &&
-			c != '(' &&
-			c != ')' &&
-			c != ';' &&
-		(short) c != -1  &&
-			!Character.isWhitespace(c)){
-			
-			builder.append((char) c);
-			input.read();
-			c = peek(input);
+	static LocalRef resolve(SymbolVal sym, Scope scope){
+		int depth = 0;
+		while(scope != null){
+			int slot = scope.slotOf(sym);
+			if(slot >= 0)
+				return new LocalRef(scope.names[slot],depth,slot);
+			depth++;
+			scope = scope.parent;
 		}
+		return null;
+	}
 
-		return new SymbolVal(builder.toString());
+	static boolean isSpecialForm(SymbolVal sym, Scope scope, Environment env){
+		String name = sym.getIdentifier();
+		if(	!name.equals("if") &&
+			!name.equals("lambda") &&
+			!name.equals("define") &&
+			!name.equals("current-environment") &&
+			!name.equals("load") &&
+			!name.equals("load-all") &&
+			!name.equals("toggle-debug"))
+			return false;
 
+		//Special forms can be shadowed by a binding with the same name.
+		if(resolve(sym,scope) != null)
+			return false;
+		try{
+			return env.lookUp(sym) == null;
+		}catch(Exception e){
+			return false;
+		}
 	}
 
-	public static StringVal parseString(Reader input) throws Exception{
-		StringBuilder builder = new StringBuilder();
-		int c = 0;
+	static Expression analyze(Expression exp, Scope scope, Environment env){
+		if(exp == null)
+			return exp;
 
-		//eat the initial '"'
-		input.read();
-		c = peek(input);
-		while( 	c != '"' &&
-			(short) c != -1 ){
-			
-			builder.append((char) c);
-			input.read();
-			c = peek(input);
+		if(exp.isSymbol()){
+			LocalRef ref = resolve((SymbolVal) exp,scope);
+			return ref != null ? ref : exp;
 		}
-		//eat the end '"'
-		input.read();
 
-		return new StringVal(builder.toString());
-		
-	}
+		if(!exp.isList())
+			return exp;
 
-	public static void parseComment(Reader input) throws Exception{
-		int c = peek(input);
-		while(c != '\n' && (short) c != -1){
-			input.read();
-			c = peek(input);
+		Pair list = (Pair) exp;
+		Expression car = list.getCar();
+		if(car.isSymbol() && isSpecialForm((SymbolVal) car,scope,env)){
+			String name = ((SymbolVal) car).getIdentifier();
+			if(name.equals("lambda"))
+				return analyzeLambda(list,scope,env);
+			else if(name.equals("define"))
+				return analyzeDefine(list,scope,env);
+			else if(name.equals("if"))
+				return new Pair(car,analyzeList(list.getCdr(),scope,env));
+			else
+				return exp;
 		}
-		return;
+		return analyzeList(exp,scope,env);
 	}
 
-	public static Pair parseList(Reader input) throws Exception{
-		int c;
-		Pair head = null;
-		Pair tail = null;
-
-		c = peek(input);
-
-		if(c == '('){
-			//eat the '('
-			input.read();
-			
-			c = peek(input);
-
-			if((short) c == -1)
-				throw new Exception("Unmatched '(' in file.");
-
-			while((short) c != ')'){
-
-				Expression exp = null;
-
-				if(c == '(')
-					exp = parseList(input);
-
-				else if(c == '#')
-					exp = parseBoolean(input);
-
-				else if(c == ';'){
-					parseComment(input);
-					c = peek(input);
-					continue;
-				}
-				
-				else if(Character.isDigit(c))
-					exp = parseNumber(input);
+	static Expression analyzeLambda(Pair list, Scope scope, Environment env){
+		Expression cdr = list.getCdr();
+		if(!cdr.isList())
+			return list;
+		Params params = Params.parse(((Pair) cdr).getCar());
+		Expression rest = ((Pair) cdr).getCdr();
+		if(params == null || !rest.isPair())
+			return list;
 
-				else if(c == '"')
-					exp = parseString(input);
+		Expression body = analyze(((Pair) rest).getCar(),scopeFor(params,scope),env);
+		return new LambdaForm(params,body,((Pair) rest).getCar());
+	}
 
-				else if(Character.isWhitespace(c)){
-					input.read();
-					c = peek(input);
-					continue;
-				}
+	static Expression analyzeDefine(Pair list, Scope scope, Environment env){
+		//(define name value) only the value is code
+		Expression cdr = list.getCdr();
+		if(!cdr.isList())
+			return list;
+		return new Pair(list.getCar(),new Pair(((Pair) cdr).getCar(),analyzeList(((Pair) cdr).getCdr(),scope,env)));
+	}
 
-				else if((short) c == -1)
-					throw new Exception("Unexpected EOF.");
+	static Expression analyzeList(Expression exp, Scope scope, Environment env){
+		if(!exp.isPair())
+			return exp;
+		Pair list = (Pair) exp;
+		Expression car = analyze(list.getCar(),scope,env);
+		Expression cdr = analyzeList(list.getCdr(),scope,env);
+		if(car == list.getCar() && cdr == list.getCdr())
+			return list;
+		return new Pair(car,cdr);
+	}
+}
 
-				//If it's none of those things it must be a symbol
-				else 
-					exp = parseSymbol(input);
-				
-				if(head == null){
-					head = new Pair(exp,null);
-					tail = head;
-				}else{
-					Pair newTail = new Pair(exp,null);
-					tail.setCdr(newTail);
-					tail = newTail;
-				}
+//Builds Expressions from the tokens of a Lexer.
+class Parser{
+	//Lexers for Readers that are parsed through parseSexp(Reader). Input
+	//the Lexer has read past the end of a form is still in its buffer
+	//when the next form is parsed from the same Reader.
+	static final Map<Reader,Lexer> lexers = Collections.synchronizedMap(new WeakHashMap<Reader,Lexer>());
 
-				c = peek(input);
+	Parser(){}
 
+	public static Expression parseSexp(Reader input) throws Exception{
+		Lexer lexer = lexers.get(input);
+		if(lexer == null){
+			//The map only holds its Readers weakly, so the Lexer is only
+			//given the Reader while it is parsing.
+			lexer = new Lexer((Reader) null);
+			lexers.put(input,lexer);
+		}
+		synchronized(lexer){
+			lexer.in = input;
+			try{
+				return parseSexp(lexer);
+			}finally{
+				lexer.in = null;
 			}
-
-			//eat the ')'
-			input.read();
-			
-
-		}else{
-			throw new Exception("parseList() expected to start on a '('.");
 		}
+	}
 
-		if(head != null)
-			tail.setCdr(new Pair(null,null));
+	//The next form, or null at the end of the input.
+	static Expression parseSexp(Lexer lexer) throws Exception{
+		int token = lexer.next();
+		if(token == Lexer.EOF)
+			return null;
+		else if(token == Lexer.OPEN)
+			return parseList(lexer);
+		else if(token == Lexer.CLOSE)
+			throw new Exception("Unmatched ')' found.");
 		else
-			head = new Pair(null,null);
-
-		return head;
-
+			return lexer.value;
 	}
 
-	public static Expression parseSexp(Reader input) throws Exception{
-
-		int c;
-
-		c = peek(input);
-
-		while((short) c != -1){
-			if(Character.isWhitespace(c)){
-				input.read();
-				c = peek(input);
-				continue;
-			}
-
-			else if(c == '#'){
-				return parseBoolean(input);
-			}
-
-			else if(Character.isDigit(c)){
-				return parseNumber(input);
-			}
-			
-			else if(c == '"'){
-				return parseString(input);
-			}
-			
-			else if(c == '('){
-				return parseList(input);
-			}
+	//The rest of a list whose '(' has been read. Lists inside it are
+	//parsed on a stack of their own rather than the Java one, so nesting
+	//is only limited by memory.
+	static Pair parseList(Lexer lexer) throws Exception{
+		//the first and last pairs of each list still open, innermost last
+		ArrayDeque<Pair[]> open = new ArrayDeque<Pair[]>();
+		Pair head = null;
+		Pair tail = null;
 
-			else if(c == ';'){
-				parseComment(input);
-				c = peek(input);
+		int token = lexer.next();
+		while(true){
+			if(token == Lexer.EOF)
+				throw new Exception(head == null ? "Unmatched '(' in file." : "Unexpected EOF.");
+
+			Expression exp;
+			if(token == Lexer.OPEN){
+				open.push(new Pair[]{head,tail});
+				head = null;
+				tail = null;
+				token = lexer.next();
 				continue;
-			}
-			else if(c == ')'){
-				throw new Exception("Unmatched ')' found.");
+			}else if(token == Lexer.CLOSE){
+				if(head == null){
+					exp = Pair.NIL;
+				}else{
+					tail.setCdr(Pair.NIL);
+					exp = head;
+				}
+				if(open.isEmpty())
+					return (Pair) exp;
+				Pair[] outer = open.pop();
+				head = outer[0];
+				tail = outer[1];
+			}else{
+				exp = lexer.value;
 			}
 
+			Pair newTail = new Pair(exp,null);
+			if(head == null)
+				head = newTail;
 			else
-				return parseSymbol(input);
-			
+				tail.setCdr(newTail);
+			tail = newTail;
 
+			token = lexer.next();
 		}
-
-		return null;
 	}
-
-
 }
 
 
@@ -981,7 +2073,7 @@ class Core{
 				throw new Exception(((StringVal) a).getVal());
 			}
 		};
-		env.add(new SymbolVal("error"),error);
+		env.add(SymbolVal.intern("error"),error);
 
 		//eval just returns a thunk to bounce off
 		//of the trampoline.
@@ -993,7 +2085,7 @@ class Core{
 				return new Thunk(a,(Environment) b);
 			}
 		};
-		env.add(new SymbolVal("eval"),eval);
+		env.add(SymbolVal.intern("eval"),eval);
 
 		JavaFunction apply = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1004,7 +2096,12 @@ class Core{
 				return Evaluator.apply_tramp(fn,args,(Environment) env);
 			}
 		};
-		env.add(new SymbolVal("apply"),apply);
+		env.add(SymbolVal.intern("apply"),apply);
+
+		//Only the CEK mode can go back into a continuation after its
+		//call/cc has returned, the others can only escape with one.
+		env.add(SymbolVal.intern("call/cc"),Machine.CALL_CC);
+		env.add(SymbolVal.intern("call-with-current-continuation"),Machine.CALL_CC);
 
 		JavaFunction eq = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1015,12 +2112,12 @@ class Core{
 				//We need to cast 'a to an object so that we don't use
 				//the atoms equals() function which will actually check values.
 				if(a == b)
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				else
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 			}
 		};
-		env.add(new SymbolVal("eq?"),eq);
+		env.add(SymbolVal.intern("eq?"),eq);
 
 		JavaFunction eqv = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1030,50 +2127,50 @@ class Core{
 
 				if(	a.isNumber() &&
 					b.isNumber()){
-					if(	((NumberVal) a).getVal().equals(((NumberVal) b).getVal()))
-						return new BooleanVal(true);
+					if(a.equals(b))
+						return BooleanVal.TRUE;
 					else
-						return new BooleanVal(false);
+						return BooleanVal.FALSE;
 				}
 
 				else if(	a.isSymbol() &&
 						b.isSymbol()){
-					if(((SymbolVal) a).getIdentifier().equals(((SymbolVal) b).getIdentifier()))
-						return new BooleanVal(true);
+					if(a == b)
+						return BooleanVal.TRUE;
 					else
-						return new BooleanVal(false);
+						return BooleanVal.FALSE;
 				}
 
 				else if(	a.isBoolean() &&
 						b.isBoolean()){
 					if(((BooleanVal) a).getVal() == ((BooleanVal) b).getVal())
-						return new BooleanVal(true);
+						return BooleanVal.TRUE;
 					else
-						return new BooleanVal(false);
+						return BooleanVal.FALSE;
 				}
 
 				else if(	a.isString() &&
 						b.isString()){
 					if(((StringVal) a).getVal().equals(((StringVal) b).getVal()))
-						return new BooleanVal(true);
+						return BooleanVal.TRUE;
 					else
-						return new BooleanVal(false);
+						return BooleanVal.FALSE;
 				}
-				return new BooleanVal(false);
+				return BooleanVal.FALSE;
 
 			}
 		};
-		env.add(new SymbolVal("eqv?"),eqv);
+		env.add(SymbolVal.intern("eqv?"),eqv);
 
 		JavaFunction equals = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				Pair list = (Pair) exp;
 				Expression a = list.getCar();
 				Expression b = ((Pair)list.getCdr()).getCar();
-				return new BooleanVal(a.equals(b));
+				return BooleanVal.valueOf(a.equals(b));
 			}
 		};
-		env.add(new SymbolVal("equals?"),equals);
+		env.add(SymbolVal.intern("equals?"),equals);
 
 		JavaFunction cons = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1083,14 +2180,14 @@ class Core{
 				return new Pair(a,b);
 			}
 		};
-		env.add(new SymbolVal("cons"),cons);
+		env.add(SymbolVal.intern("cons"),cons);
 
 		JavaFunction list = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				return exp;
 			}
 		};
-		env.add(new SymbolVal("list"),list);
+		env.add(SymbolVal.intern("list"),list);
 
 		JavaFunction car = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1104,7 +2201,7 @@ class Core{
 				}
 			}
 		};
-		env.add(new SymbolVal("car"),car);
+		env.add(SymbolVal.intern("car"),car);
 
 		JavaFunction cdr = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1118,127 +2215,127 @@ class Core{
 				}
 			}
 		};
-		env.add(new SymbolVal("cdr"),cdr);
+		env.add(SymbolVal.intern("cdr"),cdr);
 
 		JavaFunction isPair = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isPair()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("pair?"),isPair);
+		env.add(SymbolVal.intern("pair?"),isPair);
 
 		JavaFunction isSymbol = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isSymbol()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("symbol?"),isSymbol);
+		env.add(SymbolVal.intern("symbol?"),isSymbol);
 
 		JavaFunction isBoolean = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isBoolean()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("boolean?"),isBoolean);
+		env.add(SymbolVal.intern("boolean?"),isBoolean);
 
 		JavaFunction not = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isBoolean()){
-					return ((BooleanVal) exp).getVal() ? new BooleanVal(false) : new BooleanVal(true);
+					return ((BooleanVal) exp).getVal() ? BooleanVal.FALSE : BooleanVal.TRUE;
 				}else{
 					throw new Exception("(not _) expects a boolean value as an argument.");
 				}
 			}
 		};
-		env.add(new SymbolVal("not"),not);
+		env.add(SymbolVal.intern("not"),not);
 
 		JavaFunction isAtom = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isAtom()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("atom?"),isAtom);
+		env.add(SymbolVal.intern("atom?"),isAtom);
 
 		JavaFunction isNumber = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isNumber()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("number?"),isNumber);
+		env.add(SymbolVal.intern("number?"),isNumber);
 
 		JavaFunction isString = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isString()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("string?"),isString);
+		env.add(SymbolVal.intern("string?"),isString);
 
 		JavaFunction isList = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isList()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("list?"),isList);
+		env.add(SymbolVal.intern("list?"),isList);
 
 		JavaFunction stringToSymbol = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isString())
-					return new SymbolVal(((StringVal)exp).getVal());
+					return SymbolVal.intern(((StringVal)exp).getVal());
 				else
 					throw new Exception("(string->symbol _) expects a string as an argument.");
 				
 			}
 		};
-		env.add(new SymbolVal("string->symbol"),stringToSymbol);
+		env.add(SymbolVal.intern("string->symbol"),stringToSymbol);
 
 		JavaFunction isNil = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				exp = ((Pair) exp).getCar();
 				if(exp.isNil()){
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				}else{
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 				}
 			}
 		};
-		env.add(new SymbolVal("nil?"),isNil);
+		env.add(SymbolVal.intern("nil?"),isNil);
 
 		return env;
 	}
@@ -1253,149 +2350,111 @@ class MathLib{
 
 		Environment env = new Environment();
 
-		JavaFunction add = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
-
-				return new NumberVal(a.getVal().add(b.getVal()));
+		BinaryFunction add = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return NumberVal.add((NumberVal) a,(NumberVal) b);
 			}
 		};
 
-		env.add(new SymbolVal("+"),add);
+		env.add(SymbolVal.intern("+"),add);
 
-		JavaFunction subtract = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
-
-				return new NumberVal(a.getVal().subtract(b.getVal()));
+		BinaryFunction subtract = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return NumberVal.subtract((NumberVal) a,(NumberVal) b);
 			}
 		};
 
-		env.add(new SymbolVal("-"),subtract);
-
-		JavaFunction multiply = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern("-"),subtract);
 
-				return new NumberVal(a.getVal().multiply(b.getVal()));
+		BinaryFunction multiply = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return NumberVal.multiply((NumberVal) a,(NumberVal) b);
 			}
 		};
 
-		env.add(new SymbolVal("*"),multiply);
-
-		JavaFunction divide = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern("*"),multiply);
 
-				return new NumberVal(a.getVal().divide(b.getVal()));
+		BinaryFunction divide = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return NumberVal.divide((NumberVal) a,(NumberVal) b);
 			}
 		};
 
-		env.add(new SymbolVal("/"),divide);
-
-		JavaFunction and = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern("/"),divide);
 
-				return new NumberVal(a.getVal().and(b.getVal()));
+		BinaryFunction and = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return NumberVal.and((NumberVal) a,(NumberVal) b);
 			}
 		};
 
-		env.add(new SymbolVal("bitwise-and"),and);
+		env.add(SymbolVal.intern("bitwise-and"),and);
 
 		JavaFunction divideWithRemainder = new JavaFunction(){
 			Expression call(Expression exp){
 				Pair expPair = (Pair) exp;
 				NumberVal a = (NumberVal) (expPair.getCar());
 				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
-				BigInteger[] result = a.getVal().divideAndRemainder(b.getVal());
-				return new Pair(new NumberVal(result[0]), new NumberVal(result[1]));
+				NumberVal[] result = NumberVal.divideAndRemainder(a,b);
+				return new Pair(result[0], result[1]);
 			}
 		};
 
-		env.add(new SymbolVal("divide-with-remainder"),divideWithRemainder);
+		env.add(SymbolVal.intern("divide-with-remainder"),divideWithRemainder);
 
 	//Comparisons
 
-		JavaFunction gt = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
-
-				return new BooleanVal(a.getVal().compareTo(b.getVal()) > 0);
+		BinaryFunction gt = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return BooleanVal.valueOf(NumberVal.compare((NumberVal) a,(NumberVal) b) == 1);
 			}
 		};
 
-		env.add(new SymbolVal(">"),gt);
-
-		JavaFunction lt = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern(">"),gt);
 
-				return new BooleanVal(a.getVal().compareTo(b.getVal()) < 0);
+		BinaryFunction lt = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return BooleanVal.valueOf(NumberVal.compare((NumberVal) a,(NumberVal) b) == -1);
 			}
 		};
 
-		env.add(new SymbolVal("<"),lt);
-
-		JavaFunction eq = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern("<"),lt);
 
-				return new BooleanVal(a.getVal().compareTo(b.getVal()) == 0);
+		BinaryFunction eq = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				return BooleanVal.valueOf(NumberVal.compare((NumberVal) a,(NumberVal) b) == 0);
 			}
 		};
 
-		env.add(new SymbolVal("="),eq);
-
-		JavaFunction gteq = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern("="),eq);
 
-				return new BooleanVal(a.getVal().compareTo(b.getVal()) >= 0);
+		BinaryFunction gteq = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				int c = NumberVal.compare((NumberVal) a,(NumberVal) b);
+				return BooleanVal.valueOf(c == 0 || c == 1);
 			}
 		};
 
-		env.add(new SymbolVal(">="),gteq);
-
-		JavaFunction lteq = new JavaFunction(){
-			Expression call(Expression exp){
-				Pair expPair = (Pair) exp;
-				NumberVal a = (NumberVal) (expPair.getCar());
-				NumberVal b = (NumberVal) ((Pair) expPair.getCdr()).getCar();
+		env.add(SymbolVal.intern(">="),gteq);
 
-				return new BooleanVal(a.getVal().compareTo(b.getVal()) <= 0);
+		BinaryFunction lteq = new BinaryFunction(){
+			Expression call(Expression a, Expression b){
+				int c = NumberVal.compare((NumberVal) a,(NumberVal) b);
+				return BooleanVal.valueOf(c == 0 || c == -1);
 			}
 		};
 
-		env.add(new SymbolVal("<="),lteq);
+		env.add(SymbolVal.intern("<="),lteq);
 
 		JavaFunction abs = new JavaFunction(){
 			Expression call(Expression exp){
 				Pair expPair = (Pair) exp;
 				NumberVal a = (NumberVal) (expPair.getCar());
-				return new NumberVal(a.getVal().abs());
+				return NumberVal.abs(a);
 			}
 		};
 
-		env.add(new SymbolVal("abs"),abs);
+		env.add(SymbolVal.intern("abs"),abs);
 
 
 		return env;
@@ -1403,12 +2462,10 @@ class MathLib{
 
 }
 
+//The current ports belong to the Context of the interpreter calling
+//these.
 class IOLib{
 
-	static Port currentInputPort;
-	static Port currentOutputPort;
-	static Port currentErrorPort;
-
 	IOLib(){}
 
 	public static Environment getEnv(){
@@ -1419,52 +2476,67 @@ class IOLib{
 				Pair expPair = (Pair) exp;
 				Expression a = expPair.getCar();
 				if(a.isEof())
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				else
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 			}
 		};
 
-		env.add(new SymbolVal("eof?"),isEof);
+		env.add(SymbolVal.intern("eof?"),isEof);
 
 		JavaFunction isPort = new JavaFunction(){
 			Expression call(Expression exp){
 				Pair expPair = (Pair) exp;
 				Expression a = expPair.getCar();
 				if(a.isPort())
-					return new BooleanVal(true);
+					return BooleanVal.TRUE;
 				else
-					return new BooleanVal(false);
+					return BooleanVal.FALSE;
 			}
 		};
 
-		env.add(new SymbolVal("port?"),isPort);
+		env.add(SymbolVal.intern("port?"),isPort);
 
 		JavaFunction openInputFilePort = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				Pair expPair = (Pair) exp;
 				Expression a = expPair.getCar();
 				if(a.isString())
-					return new Port(new FileReader(((StringVal) a).getVal()),null);
+					return new Port(Lexer.open(((StringVal) a).getVal()));
 				else
 					throw new Exception("(open-input-file _) expects a filename as an argument.");
 			}
 		};
 
-		env.add(new SymbolVal("open-input-file"),openInputFilePort);
+		env.add(SymbolVal.intern("open-input-file"),openInputFilePort);
 
+		//(open-output-file name) is buffered fully, with vole.port.buffer
+		//chars. (open-output-file name size) has a buffer of size chars,
+		//none if it's 0 and at most PortWriter.MAX_SIZE, and
+		//(open-output-file name (quote line)) is flushed at the end of
+		//every line.
 		JavaFunction openOutputFilePort = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				Pair expPair = (Pair) exp;
 				Expression a = expPair.getCar();
-				if(a.isString())
-					return new Port(null, new FileWriter(((StringVal) a).getVal()));
-				else
+				Expression b = expPair.getCdr().isPair() ? ((Pair) expPair.getCdr()).getCar() : null;
+				if(!a.isString())
 					throw new Exception("(open-output-file _) expects a filename as an argument.");
+				boolean sized = b instanceof FixnumVal && ((FixnumVal) b).val >= 0 && ((FixnumVal) b).val <= PortWriter.MAX_SIZE;
+				if(b != null && b != SymbolVal.intern("line") && !sized)
+					throw new Exception("(open-output-file _ _) expects a buffer size of at most ".concat(Integer.toString(PortWriter.MAX_SIZE)).concat(" or line as its second argument."));
+
+				FileWriter file = new FileWriter(((StringVal) a).getVal());
+				if(b == null)
+					return new Port(null, new PortWriter(file,PortWriter.FULL));
+				if(!sized)
+					return new Port(null, new PortWriter(file,PortWriter.LINE));
+				int n = (int) ((FixnumVal) b).val;
+				return new Port(null, new PortWriter(file,n == 0 ? PortWriter.UNBUFFERED : PortWriter.FULL,n));
 			}
 		};
 
-		env.add(new SymbolVal("open-output-file"),openOutputFilePort);
+		env.add(SymbolVal.intern("open-output-file"),openOutputFilePort);
 
 		JavaFunction closePort = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1473,9 +2545,12 @@ class IOLib{
 				if(a.isPort()){
 					Reader input = ((Port) a).getInput();
 					Writer output = ((Port) a).getOutput();
+					Lexer lexer = ((Port) a).lexer;
 
 					if(input != null)
 						input.close();
+					if(lexer != null)
+						lexer.close();
 					if(output != null)
 						output.close();
 
@@ -1485,17 +2560,17 @@ class IOLib{
 			}
 		};
 
-		env.add(new SymbolVal("close-port"),closePort);
+		env.add(SymbolVal.intern("close-port"),closePort);
 
 		JavaFunction setCurrentInputPort = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				Pair expPair = (Pair) exp;
 				if(exp.isNil())
-					return currentInputPort;
+					return Context.current().input;
 
 				Expression a = expPair.getCar();
 				if(a.isPort()){
-					currentInputPort = (Port) a;
+					Context.current().input = (Port) a;
 					return null;
 				}else{
 					throw new Exception("(current-input-port _) expects a port as an argument or no arguments.");
@@ -1503,65 +2578,72 @@ class IOLib{
 			}
 		};
 
-		env.add(new SymbolVal("current-input-port"),setCurrentInputPort);
+		env.add(SymbolVal.intern("current-input-port"),setCurrentInputPort);
 
 		JavaFunction setCurrentOutputPort = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				Pair expPair = (Pair) exp;
 				if(exp.isNil())
-					return currentOutputPort;
+					return Context.current().output;
 
 				Expression a = expPair.getCar();
 				if(a.isPort()){
-					currentOutputPort = (Port) a;
+					Context.current().output = (Port) a;
 					return null;
 				}else if(a.isNil()){
-					return currentOutputPort;
+					return Context.current().output;
 				}else{
 					throw new Exception("(current-output-port _) expects a port as an argument or no arguments.");
 				}
 			}
 		};
 
-		env.add(new SymbolVal("current-output-port"), setCurrentOutputPort);
+		env.add(SymbolVal.intern("current-output-port"), setCurrentOutputPort);
 
 		JavaFunction setCurrentErrorPort = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
 				Pair expPair = (Pair) exp;
 				if(exp.isNil())
-					return currentErrorPort;
+					return Context.current().error;
 
 				Expression a = expPair.getCar();
 				if(a.isPort()){
-					currentErrorPort = (Port) a;
+					Context.current().error = (Port) a;
 					return null;
 				}else if(a.isNil()){
-					return currentErrorPort;
+					return Context.current().error;
 				}else{
 					throw new Exception("(current-error-port _) expects a port as an argument or no arguments.");
 				}
 			}
 		};
 
-		env.add(new SymbolVal("current-error-port"), setCurrentErrorPort);
+		env.add(SymbolVal.intern("current-error-port"), setCurrentErrorPort);
 
 
 
-		JavaFunction read = new JavaFunction(){
-			Expression call(Expression exp) throws Exception{
+		//While there are tasks the read is done on another thread, and
+		//only the task reading waits for it.
+		TaskFunction read = new TaskFunction(){
+			Expression attempt(Expression exp, Waiter waiter) throws Exception{
 				Pair expPair = (Pair) exp;
 				Expression a = expPair.getCar();
 
 				if(a.isPort()){
-					Reader input = ((Port) a).getInput();
+					Lexer lexer = ((Port) a).getLexer();
 					
-					if(input != null){
+					if(lexer != null){
+						Scheduler scheduler = Context.current().scheduler;
+						if(scheduler != null && scheduler.count > 0){
+							scheduler.read(lexer,waiter);
+							return Waiter.WAIT;
+						}
 
-						Expression parsedExp = Parser.parseSexp(input);
+						Expression parsedExp = Parser.parseSexp(lexer);
 						if(parsedExp != null)
 							return parsedExp;
 						else
-							return new EofVal();
+							return EofVal.EOF;
 					}
 				}
 
@@ -1569,7 +2651,72 @@ class IOLib{
 			}
 		};
 
-		env.add(new SymbolVal("read"),read);
+		env.add(SymbolVal.intern("read"),read);
+
+		//The Java macro expander, see Expander. A define in the form
+		//reads the next form from the current input port.
+		JavaFunction expand = new JavaFunction(){
+			Expression call(Expression exp) throws Exception{
+				Pair expPair = (Pair) exp;
+				Expression a = expPair.getCar();
+				if(a == null)
+					throw new Exception("(expand _) expects a form as an argument.");
+				return Expander.expand(a,Context.current().input);
+			}
+		};
+
+		env.add(SymbolVal.intern("expand"),expand);
+
+		//Like read, but a list is returned before it has been read. Each
+		//element is parsed when the cdr before it is first used, so a
+		//huge list can be walked in bounded memory as long as nothing
+		//holds on to its head.
+		JavaFunction readLazy = new JavaFunction(){
+			Expression call(Expression exp) throws Exception{
+				Pair expPair = (Pair) exp;
+				Expression a = expPair.getCar();
+
+				if(a.isPort()){
+					Lexer lexer = ((Port) a).getLexer();
+					
+					if(lexer != null){
+						int token = lexer.next();
+						if(token == Lexer.EOF)
+							return EofVal.EOF;
+						else if(token == Lexer.OPEN)
+							return LazyPair.read(lexer);
+						else if(token == Lexer.CLOSE)
+							throw new Exception("Unmatched ')' found.");
+						else
+							return lexer.value;
+					}
+				}
+
+				throw new Exception("(read-lazy _) expects an open input port as an argument.");
+			}
+		};
+
+		env.add(SymbolVal.intern("read-lazy"),readLazy);
+
+		//(compile-file "foo.scm") writes the image foo.fasl that load uses
+		//in place of foo.scm, (compile-file "foo.scm" "bar.fasl") names it.
+		//The forms in it are expanded with the macros there are now.
+		JavaFunction compileFile = new JavaFunction(){
+			Expression call(Expression exp) throws Exception{
+				Pair expPair = (Pair) exp;
+				Expression a = expPair.getCar();
+				Expression b = expPair.getCdr().isNil() ? null : ((Pair) expPair.getCdr()).getCar();
+				if(a.isString() && (b == null || b.isString())){
+					String source = ((StringVal) a).getVal();
+					String image = b == null ? Fasl.imageFor(source) : ((StringVal) b).getVal();
+					Fasl.compileFile(source,image);
+					return new StringVal(image);
+				}
+				throw new Exception("(compile-file _) expects a filename and optionally an image filename as arguments.");
+			}
+		};
+
+		env.add(SymbolVal.intern("compile-file"),compileFile);
 
 		JavaFunction write = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1586,7 +2733,6 @@ class IOLib{
 							break;
 						
 						Printer.printExpression(a,output);
-						output.flush();
 						return null;
 					}
 					break;
@@ -1595,7 +2741,21 @@ class IOLib{
 			}
 		};
 
-		env.add(new SymbolVal("write"),write);
+		env.add(SymbolVal.intern("write"),write);
+
+		//Hands what's been written to the port, or to the current output
+		//port, to the file or stream behind it.
+		JavaFunction flushOutput = new JavaFunction(){
+			Expression call(Expression exp) throws Exception{
+				Expression a = exp.isPair() ? ((Pair) exp).getCar() : Context.current().output;
+				if(a == null || !a.isPort() || ((Port) a).getOutput() == null)
+					throw new Exception("(flush-output _) expects an output port as an argument or no arguments.");
+				((Port) a).getOutput().flush();
+				return null;
+			}
+		};
+
+		env.add(SymbolVal.intern("flush-output"),flushOutput);
 
 		JavaFunction newline = new JavaFunction(){
 			Expression call(Expression exp) throws Exception{
@@ -1613,7 +2773,7 @@ class IOLib{
 			}
 		};
 
-		env.add(new SymbolVal("newline"),newline);
+		env.add(SymbolVal.intern("newline"),newline);
 		
 		return env;
 
@@ -1630,6 +2790,12 @@ class CoreLispLib{
 		env.concat(Core.getEnv());
 		env.concat(MathLib.getEnv());
 		env.concat(IOLib.getEnv());
+		env.concat(TaskLib.getEnv());
+
+		//Snapshots refer to builtins by these names.
+		for(Map.Entry<SymbolVal,Expression> entry : env.getMap().entrySet())
+			if(entry.getValue() instanceof JavaFunction)
+				((JavaFunction) entry.getValue()).name = entry.getKey().getIdentifier();
 		
 		return env;
 	}
@@ -1637,46 +2803,205 @@ class CoreLispLib{
 
 public class Vole{ 
 
+	//How forms are run. INTERPRETED walks the Pairs of each form,
+	//COMPILED turns each form into a tree of Nodes first and BYTECODE
+	//compiles it for the VM. TIERED is COMPILED plus compiling the
+	//bodies of hot lambdas to JVM classes. CEK interprets forms like
+	//INTERPRETED with the continuation kept on the heap, see Machine.
+	public enum Mode {INTERPRETED, COMPILED, BYTECODE, TIERED, CEK}
+
 	BufferedReader reader;
-	BufferedWriter writer;
-	BufferedWriter error;
+	PortWriter writer;
+	PortWriter error;
 
 	Environment env;
 
+	//Everything else this interpreter doesn't share with others, it's
+	//entered while any of the methods below run, see Context.
+	Context context;
+
+	//The Vole reset goes back to, null for a fresh top level.
+	Vole template;
+
 	public Vole(Reader input, Writer output, Writer error){
 
-		this.reader = new BufferedReader(new InputStreamReader(System.in));
-		this.writer = new BufferedWriter(new OutputStreamWriter(System.out));
-		this.error = new BufferedWriter(new OutputStreamWriter(System.err));
 		this.env = new Environment();
 		this.env.concat(CoreLispLib.getEnv());
-		
+		this.context = new Context();
+		setPorts(input,output,error);
+	}
+
+	//A Vole that starts out with template's top level and macros, see
+	//reset. template shouldn't be used any more. It has no ports until
+	//setPorts is called.
+	Vole(Vole template){
+		this.template = template;
+		this.context = new Context();
+		reset();
+	}
+
+	void setPorts(Reader input, Writer output, Writer error){
+		this.reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+		//Output to a terminal shows up a line at a time, anything else is
+		//flushed when a method of this Vole returns.
+		this.writer = new PortWriter(output,System.console() != null ? PortWriter.LINE : PortWriter.FULL);
+		this.error = new PortWriter(error,PortWriter.LINE);
+		context.input = new Port(reader,null);
+		context.output = new Port(null,writer);
+		context.error = new Port(null,this.error);
+	}
+
+	void dropPorts(){
+		reader = null;
+		writer = null;
+		error = null;
+		context.input = null;
+		context.output = null;
+		context.error = null;
+	}
+
+	//Drops everything defined and every macro made since the Vole was
+	//made. One made from a template also goes back to its mode, and
+	//shares the template's top level until it defines something, so
+	//this costs next to nothing.
+	public void reset(){
+		if(template == null){
+			env = new Environment();
+			env.concat(CoreLispLib.getEnv());
+			Context fresh = new Context();
+			fresh.mode = context.mode;
+			context.reset(fresh);
+		}else{
+			env = template.env.copyOnWrite();
+			context.reset(template.context);
+		}
 	}
 
-	public void repl(){
+	//Done with this Vole. Every Vole that compiles or has debug on makes
+	//the others check their own Context on each call, so one that is
+	//dropped should be closed. It can't be used after.
+	public void close(){
+		flush();
+		context.close();
+	}
 
+	public void setMode(Mode mode){
+		context.setMode(mode);
+	}
+
+	public Mode getMode(){
+		return context.mode;
+	}
+
+	//How deep calls that aren't in tail position may nest before they're
+	//an error, vole.max.depth or 250 to start with, which fits the
+	//default Java stack in every mode. Outside the bytecode mode each
+	//level takes Java stack, so a bigger one may also need a bigger -Xss.
+	public void setMaxDepth(int maxDepth){
+		context.maxDepth = maxDepth;
+	}
+
+	//Loads the files into the top level, parsing them in parallel but
+	//evaluating their forms in order, same as (load-all "a" "b" ...).
+	public void loadAll(String... filenames) throws Exception{
+		Context previous = Context.enter(context);
 		try{
-			Evaluator.eval(new Pair(new SymbolVal("current-input-port"),new Pair(new Port( reader, null),new Pair(null,null))), env);
-			Evaluator.eval(new Pair(new SymbolVal("current-output-port"),new Pair(new Port( null, writer),new Pair(null,null))), env);
-			Evaluator.eval(new Pair(new SymbolVal("current-error-port"),new Pair(new Port( null, error),new Pair(null,null))), env);
-		
-			Evaluator.load("repl.scm",env);
-			Evaluator.eval(new Pair(new SymbolVal("eval-loop"),new Pair(null,null)),env);
+			Loader.loadAll(filenames,env);
+			finishTasks();
+		}finally{
+			flush();
+			Context.exit(previous);
+		}
+	}
+
+	//Writes everything defined at the top level, and everything that
+	//can be reached from it, to a snapshot file.
+	public void saveSnapshot(String filename) throws Exception{
+		Fasl.writeSnapshot(filename,env);
+	}
+
+	//Replaces the top level with the one saved in a snapshot. Lambdas in
+	//it are compiled for the current mode, so set the mode first.
+	public void restoreSnapshot(String filename) throws Exception{
+		Context previous = Context.enter(context);
+		try{
+			env = Fasl.readSnapshot(Fasl.readFile(filename));
+		}finally{
+			flush();
+			Context.exit(previous);
+		}
+	}
+
+	public void repl(){
+		Context previous = Context.enter(context);
+		try{
+			//A restored snapshot may already have the repl loaded.
+			if(env.lookUp(SymbolVal.intern("eval-loop")) == null)
+				Evaluator.load("repl.scm",env);
+			Evaluator.eval(new Pair(SymbolVal.intern("eval-loop"),Pair.NIL),env);
+			finishTasks();
 		}catch(Exception e){
-			e.printStackTrace();
+			report(e);
+		}catch(StackOverflowError e){
+			report(Evaluator.outOfStack(context));
+		}finally{
+			flush();
+			Context.exit(previous);
 		}
 		
 	}
 
+	//Lets the tasks spawned by what a method ran go on until each has
+	//finished or is waiting for something that won't come.
+	void finishTasks() throws Exception{
+		if(context.scheduler != null)
+			context.scheduler.finish();
+	}
+
+	//Errors that end repl or eval go to the error writer, after the
+	//output written before them.
+	void report(Exception e){
+		flush();
+		PrintWriter out = new PrintWriter(error);
+		e.printStackTrace(out);
+		out.flush();
+	}
+
+	//Flushes the ports this Vole was given and the current ones, if
+	//they have been changed.
+	void flush(){
+		Port[] ports = {context.output, context.error};
+		Writer[] writers = {writer, error, null, null};
+		for(int i = 0; i < ports.length; i++)
+			if(ports[i] != null)
+				writers[i + 2] = ports[i].getOutput();
+		for(Writer w : writers){
+			try{
+				if(w != null)
+					w.flush();
+			}catch(Exception e){
+				//the output is gone, nothing more can be written to it
+			}
+		}
+	}
+
+	//Reads a form from the input and evaluates it, expanded the way the
+	//repl does. The form is parsed with the input port's Lexer, which is
+	//where a define reads the form it is bound in from.
 	public void eval(){
+		Context previous = Context.enter(context);
 		try{
-			Evaluator.eval(new Pair(new SymbolVal("current-input-port"),new Pair(new Port( reader, null),new Pair(null,null))), env);
-			Evaluator.eval(new Pair(new SymbolVal("current-output-port"),new Pair(new Port( null, writer),new Pair(null,null))), env);
-			Evaluator.eval(new Pair(new SymbolVal("current-error-port"),new Pair(new Port( null, error),new Pair(null,null))), env);
-			Expression exp = Parser.parseSexp(reader);
-			Evaluator.eval(exp,env);
+			Expression exp = Parser.parseSexp(context.input.getLexer());
+			if(exp != null)
+				Evaluator.eval(Expander.expand(exp,context.input),env);
+			finishTasks();
 		}catch(Exception e){
-			e.printStackTrace();
+			report(e);
+		}catch(StackOverflowError e){
+			report(Evaluator.outOfStack(context));
+		}finally{
+			flush();
+			Context.exit(previous);
 		}
 	}
 
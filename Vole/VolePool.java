@@ -0,0 +1,117 @@
+package Vole;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+//A fixed number of interpreters with the libraries already loaded, for
+//running many short requests. The libraries are loaded once, into a
+//template every interpreter in the pool starts from and is reset to
+//when it's given back, see Vole.reset. Each request gets one of them to
+//itself for as long as it runs, with its own ports:
+//	VolePool pool = new VolePool(16,Vole.Mode.COMPILED,"macros.scm");
+//	Vole vole = pool.lease(input,output,error);
+//	try{ vole.eval(); }finally{ pool.release(vole); }
+//or with submit, which runs the request on a thread of its own, a
+//virtual one on JVMs that have them.
+public class VolePool{
+
+	public interface Request<T>{
+		T run(Vole vole) throws Exception;
+	}
+
+	Vole template;
+	BlockingQueue<Vole> idle;
+	ExecutorService threads;
+	//set by shutdown, interpreters given back after it are closed
+	volatile boolean closed;
+
+	public VolePool(int size, Vole.Mode mode, String... libraries) throws Exception{
+		template = new Vole(new StringReader(""),new StringWriter(),new StringWriter());
+		template.setMode(mode);
+		template.loadAll(libraries);
+
+		idle = new ArrayBlockingQueue<Vole>(size);
+		for(int i = 0; i < size; i++)
+			idle.add(new Vole(template));
+		threads = requestThreads();
+	}
+
+	public VolePool(int size) throws Exception{
+		this(size,Vole.Mode.INTERPRETED,"macros.scm");
+	}
+
+	//Waits for an interpreter to be free and gives it the ports.
+	public Vole lease(Reader input, Writer output, Writer error) throws InterruptedException{
+		if(closed)
+			throw new IllegalStateException("The pool has been shut down.");
+		Vole vole = idle.take();
+		vole.setPorts(input,output,error);
+		return vole;
+	}
+
+	//Gives back an interpreter from lease, after flushing its output and
+	//dropping everything the request did to it.
+	public void release(Vole vole){
+		vole.flush();
+		vole.dropPorts();
+		if(closed){
+			vole.close();
+			return;
+		}
+		vole.reset();
+		idle.add(vole);
+		//shutdown may have missed it
+		if(closed && idle.remove(vole))
+			vole.close();
+	}
+
+	//Runs the request on a new thread with an interpreter of its own.
+	public <T> Future<T> submit(final Reader input, final Writer output, final Writer error, final Request<T> request){
+		return threads.submit(new Callable<T>(){
+			public T call() throws Exception{
+				Vole vole = lease(input,output,error);
+				try{
+					return request.run(vole);
+				}finally{
+					release(vole);
+				}
+			}
+		});
+	}
+
+	//Stops taking requests and closes the interpreters, those leased
+	//now are closed when they're given back.
+	public void shutdown(){
+		closed = true;
+		threads.shutdown();
+		Vole vole;
+		while((vole = idle.poll()) != null)
+			vole.close();
+		template.close();
+	}
+
+	//A thread per task, virtual where the JVM has them. Otherwise idle
+	//threads are reused and don't keep the JVM from exiting.
+	static ExecutorService requestThreads(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(Exception e){
+			return Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task,"vole-request");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
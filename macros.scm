@@ -62,18 +62,10 @@
 			  (caddr form)))
 		       (cadr form))
 
+		    ;;(lambda (a b . rest) body) => (lambda (a b . rest) <expanded body>)
+		    ;;the evaluator binds every argument itself
 		    (if (eqv? keyword (string->symbol "lambda"))
-		      ((lambda args
-			 ((lambda expression
-			    (if (pair? args)
-				((lambda lambda-tail
-					(list (string->symbol "lambda") (car args) lambda-tail) )
-				 (if (nil? (cdr args))
-				   (macro-expand expression)
-				   (macro-expand (list (string->symbol "lambda") (cdr args) expression))))
-			      (map (list macro-expand (list (string->symbol "lambda") args expression)))))
-			  (caddr form)))
-		       (cadr form))
+		      (list (string->symbol "lambda") (cadr form) (macro-expand (caddr form)))
 
 
 
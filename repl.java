@@ -5,6 +5,16 @@ import java.io.OutputStreamWriter;
 class repl{
 	public static void main(String [] args){
 		Vole v = new Vole(new InputStreamReader(System.in),new OutputStreamWriter(System.out),new OutputStreamWriter(System.err));
+		for(String arg : args){
+			if(arg.equals("--compile"))
+				v.setMode(Vole.Mode.COMPILED);
+			else if(arg.equals("--bytecode"))
+				v.setMode(Vole.Mode.BYTECODE);
+			else if(arg.equals("--jit"))
+				v.setMode(Vole.Mode.TIERED);
+			else if(arg.equals("--cek"))
+				v.setMode(Vole.Mode.CEK);
+		}
 		v.repl();
 	}
 }
@@ -1,7 +1,13 @@
 (load "macros.scm")
 
+;Each form is evaluated as the argument of a call in tail position, so
+;the loop runs in constant stack however many forms it reads.
 (define eval-loop 
   (lambda () 
-	  ((lambda ()
-	     (eval-loop))
-	     (eval (macro-expand (read (current-input-port))) (top-level-environment)))))
+	  ((lambda (form)
+	     (if (eof? form)
+		 form
+		 ((lambda (value)
+		    (eval-loop))
+		    (eval (expand form) (top-level-environment)))))
+	     (read (current-input-port)))))